@@ -0,0 +1,58 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import bench.CodecBenchmark;
+
+public class CodecFixture implements CodecBenchmark.Fixture {
+	private MessageCodec codec;
+	private InputStream in;
+
+	@Override
+	public void setUp(int messageLength, int messagesPerRead) {
+		StringBuilder message = new StringBuilder("RETR ");
+		while (message.length() < messageLength) {
+			message.append('x');
+		}
+		message.setLength(messageLength);
+		byte[] one = (message + "\0").getBytes(StandardCharsets.ISO_8859_1);
+
+		byte[] chunk = new byte[one.length * messagesPerRead];
+		for (int i = 0; i < messagesPerRead; i++) {
+			System.arraycopy(one, 0, chunk, i * one.length, one.length);
+		}
+
+		codec = new MessageCodec(64 * 1024);
+		in = new Repeating(chunk);
+	}
+
+	@Override
+	public String readMessage() throws IOException {
+		return codec.readMessage(in);
+	}
+
+	// hands out the same chunk over and over, never ends
+	private static final class Repeating extends InputStream {
+		private final byte[] chunk;
+		private int position;
+
+		Repeating(byte[] chunk) {
+			this.chunk = chunk;
+		}
+
+		@Override
+		public int read() {
+			int b = chunk[position] & 0xff;
+			position = (position + 1) % chunk.length;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			int count = Math.min(len, chunk.length - position);
+			System.arraycopy(chunk, position, b, off, count);
+			position = (position + count) % chunk.length;
+			return count;
+		}
+	}
+}
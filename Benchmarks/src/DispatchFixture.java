@@ -0,0 +1,83 @@
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+
+import bench.DispatchBenchmark;
+
+// the session's transport: keeps the last reply; a transfer would see no data and write nowhere
+public class DispatchFixture implements DispatchBenchmark.Fixture, SessionTransport {
+	private ClientSession session;
+	private byte[] reply;
+
+	@Override
+	public void setUp() {
+		session = new ClientSession(this);
+		session.onConnect();
+		session.handleMessage("USER trial");
+	}
+
+	@Override
+	public void tearDown() {
+	}
+
+	@Override
+	public Object parse(String message) {
+		return Command.parse(message);
+	}
+
+	@Override
+	public Object handle(String message) {
+		session.handleMessage(message);
+		return reply;
+	}
+
+	@Override
+	public void writeMessage(byte[] message) {
+		reply = message;
+	}
+
+	@Override
+	public InputStream dataIn() {
+		return new ByteArrayInputStream(new byte[0]);
+	}
+
+	@Override
+	public OutputStream dataOut() {
+		return new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		};
+	}
+
+	@Override
+	public ReadableByteChannel dataChannel() {
+		return Channels.newChannel(dataIn());
+	}
+
+	@Override
+	public SocketChannel channel() {
+		return null;
+	}
+
+	@Override
+	public void runTransfer(Runnable transfer) {
+		transfer.run();
+	}
+
+	@Override
+	public void close() {
+	}
+
+	@Override
+	public boolean isClosed() {
+		return false;
+	}
+}
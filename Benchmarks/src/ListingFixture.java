@@ -0,0 +1,40 @@
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import bench.ListingBenchmark;
+
+public class ListingFixture implements ListingBenchmark.Fixture {
+	private Path directory;
+	private List<Path> paths;
+
+	@Override
+	public void setUp(int files) throws IOException {
+		directory = Files.createTempDirectory("listing");
+		for (int i = 0; i < files; i++) {
+			Files.write(directory.resolve("file" + i + ".txt"), new byte[i % 512]);
+		}
+		paths = new ArrayList<Path>();
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+			for (Path entry : entries) {
+				paths.add(entry);
+			}
+		}
+	}
+
+	@Override
+	public List<String> lines(boolean verbose) {
+		return DirectoryLister.lines(paths, verbose);
+	}
+
+	@Override
+	public void tearDown() throws IOException {
+		for (Path path : paths) {
+			Files.delete(path);
+		}
+		Files.delete(directory);
+	}
+}
@@ -0,0 +1,195 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import bench.TransferBenchmark;
+
+public class TransferFixture implements TransferBenchmark.Fixture {
+	private int fileSize;
+
+	private Path source;
+	private Path target;
+	private FileChannel sourceChannel;
+	private FileChannel targetChannel;
+	private ByteBuffer sourceBuffer;
+
+	private ServerSocketChannel listener;
+	private SocketChannel sender;
+	private SocketChannel receiver;
+
+	@Override
+	public void setUp(int fileSize) throws IOException {
+		this.fileSize = fileSize;
+
+		byte[] content = new byte[fileSize];
+		for (int i = 0; i < content.length; i++) {
+			content[i] = (byte) (i * 31);
+		}
+		source = Files.createTempFile("retr", ".bin");
+		Files.write(source, content);
+		target = Files.createTempFile("stor", ".bin");
+
+		sourceChannel = FileChannel.open(source, StandardOpenOption.READ);
+		targetChannel = FileChannel.open(target, StandardOpenOption.WRITE);
+		sourceBuffer = ByteBuffer.wrap(content);
+
+		listener = ServerSocketChannel.open();
+		listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		sender = SocketChannel.open(listener.getLocalAddress());
+		receiver = listener.accept();
+	}
+
+	@Override
+	public void tearDown() throws IOException {
+		sender.close();
+		receiver.close();
+		listener.close();
+		sourceChannel.close();
+		targetChannel.close();
+		Files.delete(source);
+		Files.delete(target);
+	}
+
+	@Override
+	public long retrToMemory() throws IOException {
+		return FileTransfer.sendRange(sourceChannel, 0, fileSize, new Discard());
+	}
+
+	@Override
+	public long retrCachedToMemory() throws IOException {
+		return FileTransfer.sendBuffer(sourceBuffer, 0, fileSize, new Discard());
+	}
+
+	@Override
+	public long storFromMemory() throws IOException {
+		return FileTransfer.receiveRange(new Zeros(), targetChannel, 0, fileSize);
+	}
+
+	@Override
+	public long streamCopy() throws IOException {
+		return FileTransfer.copy(inputStream(sourceBuffer), new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		}, fileSize);
+	}
+
+	@Override
+	public long retrOverLoopback() throws Exception {
+		Thread reader = drain(receiver, fileSize);
+		long sent = FileTransfer.sendRange(sourceChannel, 0, fileSize, sender);
+		reader.join();
+		return sent;
+	}
+
+	@Override
+	public long storOverLoopback() throws Exception {
+		Thread writer = new Thread(() -> {
+			try {
+				FileTransfer.sendBuffer(sourceBuffer, 0, fileSize, sender);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		writer.start();
+		long received = FileTransfer.receiveRange(receiver, targetChannel, 0, fileSize);
+		writer.join();
+		return received;
+	}
+
+	// reads count bytes off channel on its own thread
+	private static Thread drain(SocketChannel channel, long count) {
+		Thread thread = new Thread(() -> {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(FileTransfer.BUFFER_SIZE);
+			long left = count;
+			try {
+				while (left > 0) {
+					buffer.clear();
+					if (buffer.remaining() > left) {
+						buffer.limit((int) left);
+					}
+					int n = channel.read(buffer);
+					if (n < 0) {
+						break;
+					}
+					left -= n;
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		thread.start();
+		return thread;
+	}
+
+	private static InputStream inputStream(ByteBuffer content) {
+		ByteBuffer view = content.duplicate();
+		return new InputStream() {
+			@Override
+			public int read() {
+				return view.hasRemaining() ? view.get() & 0xff : -1;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) {
+				if (!view.hasRemaining()) {
+					return -1;
+				}
+				int count = Math.min(len, view.remaining());
+				view.get(b, off, count);
+				return count;
+			}
+		};
+	}
+
+	private static final class Discard implements WritableByteChannel {
+		@Override
+		public int write(ByteBuffer src) {
+			int count = src.remaining();
+			src.position(src.limit());
+			return count;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	private static final class Zeros implements ReadableByteChannel {
+		@Override
+		public int read(ByteBuffer dst) {
+			int count = dst.remaining();
+			dst.position(dst.limit());
+			return count;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
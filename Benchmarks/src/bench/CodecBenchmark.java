@@ -0,0 +1,43 @@
+package bench;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Control message framing: MessageCodec.readMessage cutting NUL-terminated
+ * messages out of a stream, which is what the server does for every command.
+ **/
+@State(Scope.Thread)
+public class CodecBenchmark {
+
+	public interface Fixture {
+		void setUp(int messageLength, int messagesPerRead);
+
+		String readMessage() throws IOException;
+	}
+
+	@Param({ "4", "64", "1024" })
+	public int messageLength;
+
+	// how many messages arrive in one read from the stream
+	@Param({ "1", "32" })
+	public int messagesPerRead;
+
+	private Fixture fixture;
+
+	@Setup
+	public void setUp() {
+		fixture = Fixtures.create("CodecFixture", Fixture.class);
+		fixture.setUp(messageLength, messagesPerRead);
+	}
+
+	@Benchmark
+	public String readMessage() throws IOException {
+		return fixture.readMessage();
+	}
+}
@@ -0,0 +1,61 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Command.parse plus ClientSession.handleMessage: validation, the handler table
+ * and building the reply, with replies going nowhere. The session logs in as
+ * "trial" first, so run from the Server directory where peopleDB.db is.
+ **/
+@State(Scope.Thread)
+public class DispatchBenchmark {
+
+	public interface Fixture {
+		void setUp();
+
+		Object parse(String message);
+
+		// the reply to message
+		Object handle(String message);
+
+		void tearDown();
+	}
+
+	private Fixture fixture;
+
+	@Setup
+	public void setUp() {
+		fixture = Fixtures.create("DispatchFixture", Fixture.class);
+		fixture.setUp();
+	}
+
+	@TearDown
+	public void tearDown() {
+		fixture.tearDown();
+	}
+
+	@Benchmark
+	public Object parse() {
+		return fixture.parse("TYPE B");
+	}
+
+	@Benchmark
+	public Object type() {
+		return fixture.handle("TYPE B");
+	}
+
+	@Benchmark
+	public Object unknown() {
+		return fixture.handle("XYZZ something");
+	}
+
+	// USER goes through the user cache or snapshot, not the database, after the first time
+	@Benchmark
+	public Object user() {
+		return fixture.handle("USER trial");
+	}
+}
@@ -0,0 +1,21 @@
+package bench;
+
+/**
+ * JMH won't generate benchmarks in the default package, and classes in a named
+ * package can't see the server's, which all live there. So each benchmark here
+ * drives a fixture class from the default package through an interface; the
+ * call is monomorphic and gets inlined, it doesn't show up in the numbers.
+ **/
+final class Fixtures {
+
+	static <T> T create(String className, Class<T> type) {
+		try {
+			return Class.forName(className).asSubclass(type).getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("fixture " + className + " not on the classpath", e);
+		}
+	}
+
+	private Fixtures() {
+	}
+}
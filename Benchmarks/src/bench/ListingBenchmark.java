@@ -0,0 +1,53 @@
+package bench;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * LIST F and LIST V line formatting through DirectoryLister over a scratch
+ * directory, below and above the size where it stats entries in parallel.
+ **/
+@State(Scope.Benchmark)
+public class ListingBenchmark {
+
+	public interface Fixture {
+		void setUp(int files) throws IOException;
+
+		List<String> lines(boolean verbose);
+
+		void tearDown() throws IOException;
+	}
+
+	@Param({ "16", "4096" })
+	public int files;
+
+	private Fixture fixture;
+
+	@Setup
+	public void setUp() throws IOException {
+		fixture = Fixtures.create("ListingFixture", Fixture.class);
+		fixture.setUp(files);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		fixture.tearDown();
+	}
+
+	@Benchmark
+	public List<String> names() {
+		return fixture.lines(false);
+	}
+
+	@Benchmark
+	public List<String> verbose() {
+		return fixture.lines(true);
+	}
+}
@@ -0,0 +1,89 @@
+package bench;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The RETR and STOR byte pumps in FileTransfer, moving one file of fileSize
+ * bytes per call: into and out of in-memory channels, which shows the pump's
+ * own cost, and over a loopback socket, which shows what a client would see.
+ **/
+@State(Scope.Thread)
+public class TransferBenchmark {
+
+	public interface Fixture {
+		void setUp(int fileSize) throws IOException;
+
+		// RETR from disk, zero-copy where the sink allows it
+		long retrToMemory() throws IOException;
+
+		// RETR of a file FileCache already holds
+		long retrCachedToMemory() throws IOException;
+
+		// STOR to disk from a client that is never slow
+		long storFromMemory() throws IOException;
+
+		// TYPE A/C style stream copy
+		long streamCopy() throws IOException;
+
+		// the file goes out with sendfile, another thread reads it back
+		long retrOverLoopback() throws Exception;
+
+		// another thread plays the client
+		long storOverLoopback() throws Exception;
+
+		void tearDown() throws IOException;
+	}
+
+	@Param({ "65536", "16777216" })
+	public int fileSize;
+
+	private Fixture fixture;
+
+	@Setup
+	public void setUp() throws IOException {
+		fixture = Fixtures.create("TransferFixture", Fixture.class);
+		fixture.setUp(fileSize);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		fixture.tearDown();
+	}
+
+	@Benchmark
+	public long retrToMemory() throws IOException {
+		return fixture.retrToMemory();
+	}
+
+	@Benchmark
+	public long retrCachedToMemory() throws IOException {
+		return fixture.retrCachedToMemory();
+	}
+
+	@Benchmark
+	public long storFromMemory() throws IOException {
+		return fixture.storFromMemory();
+	}
+
+	@Benchmark
+	public long streamCopy() throws IOException {
+		return fixture.streamCopy();
+	}
+
+	@Benchmark
+	public long retrOverLoopback() throws Exception {
+		return fixture.retrOverLoopback();
+	}
+
+	@Benchmark
+	public long storOverLoopback() throws Exception {
+		return fixture.storOverLoopback();
+	}
+}
@@ -0,0 +1,262 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * Per-block checksums of the range of a file a transfer moves, for CSUM. The range
+ * is cut into BLOCK_SIZE blocks from its first byte so a mismatch can be repaired by
+ * resending just that block. A hashing thread reads each block back through the page
+ * cache once the transfer has moved past it (at once if the file is already complete),
+ * so zero-copy transfers stay zero-copy and the socket thread never waits on a hash.
+ * Same class on the client and the server.
+ **/
+final class BlockChecksums {
+
+	static final int BLOCK_SIZE = 4 * 1024 * 1024;
+
+	// a thread per transfer in progress: a hasher spends most of its time waiting for the
+	// transfer to move on, and one queued behind others would turn into a second pass at the end
+	private static final ExecutorService HASHERS = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "checksum");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final FileChannel file;
+	private final String algorithm;
+	private final long offset;
+	private final Future<List<String>> hashes;
+
+	// guarded by this: bytes up to available are in the file, end shrinks if the transfer stops short
+	private long available;
+	private long end;
+	private boolean finished;
+
+	private BlockChecksums(FileChannel file, String algorithm, long offset, long count) {
+		this.file = file;
+		this.algorithm = algorithm;
+		this.offset = offset;
+		this.available = offset;
+		this.end = offset + count;
+		this.hashes = HASHERS.submit(this::hashBlocks);
+	}
+
+	// CRC32C only exists from Java 9 on, so it is looked up rather than linked against
+	static boolean isSupported(String algorithm) {
+		try {
+			newHasher(algorithm);
+			return true;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	// count bytes from offset of path, which the caller is about to write (see advance)
+	static BlockChecksums start(Path path, String algorithm, long offset, long count) throws IOException {
+		return new BlockChecksums(FileChannel.open(path, StandardOpenOption.READ), algorithm, offset, count);
+	}
+
+	// same, for a file that is already complete
+	static BlockChecksums ofExisting(Path path, String algorithm, long offset, long count) throws IOException {
+		BlockChecksums checksums = start(path, algorithm, offset, count);
+		checksums.advance(offset + count);
+		return checksums;
+	}
+
+	// the transfer has written everything before position
+	synchronized void advance(long position) {
+		if (position > available) {
+			available = position;
+			notifyAll();
+		}
+	}
+
+	// out writes the range in order from its first byte, each write moves the hashing along
+	OutputStream reporting(OutputStream out) {
+		return new FilterOutputStream(out) {
+			private long position = offset;
+
+			@Override
+			public void write(byte[] bytes, int from, int length) throws IOException {
+				out.write(bytes, from, length);
+				position += length;
+				advance(position);
+			}
+
+			@Override
+			public void write(int b) throws IOException {
+				out.write(b);
+				advance(++position);
+			}
+		};
+	}
+
+	// the transfer failed, stop hashing without waiting for the result
+	void cancel() {
+		synchronized (this) {
+			end = offset;
+			finished = true;
+			notifyAll();
+		}
+		try {
+			file.close();
+		} catch (IOException e) {
+			// only ever read from
+		}
+	}
+
+	// "<algorithm> <block size> <offset> <hash>..." over the transferred bytes, once they are all hashed
+	String finish(long transferred) throws IOException {
+		synchronized (this) {
+			end = Math.min(end, offset + transferred);
+			finished = true;
+			notifyAll();
+		}
+
+		try {
+			StringBuilder line = new StringBuilder();
+			line.append(algorithm).append(' ').append(BLOCK_SIZE).append(' ').append(offset);
+			for (String hash : hashes.get()) {
+				line.append(' ').append(hash);
+			}
+			return line.toString();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while hashing");
+		} catch (ExecutionException e) {
+			throw new IOException("hashing failed", e.getCause());
+		} finally {
+			file.close();
+		}
+	}
+
+	// [offset, count] ranges of the transfer starting at start whose blocks don't agree
+	static List<long[]> differences(String ours, String theirs, long start, long count) {
+		String[] a = ours.split(" ");
+		String[] b = theirs.split(" ");
+		List<long[]> ranges = new ArrayList<long[]>();
+
+		if (a.length < 3 || b.length < 3 || !a[0].equals(b[0]) || !a[1].equals(b[1]) || !a[2].equals(b[2])) {
+			ranges.add(new long[] { start, count });
+			return ranges;
+		}
+
+		long blockSize = Long.parseLong(a[1]);
+		for (long blockStart = start, i = 3; blockStart < start + count; blockStart += blockSize, i++) {
+			if (i >= a.length || i >= b.length || !a[(int) i].equals(b[(int) i])) {
+				ranges.add(new long[] { blockStart, Math.min(blockSize, start + count - blockStart) });
+			}
+		}
+		return ranges;
+	}
+
+	private List<String> hashBlocks() throws IOException, InterruptedException {
+		List<String> blockHashes = new ArrayList<String>();
+		ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+		for (long blockStart = offset; blockStart < end(); blockStart += BLOCK_SIZE) {
+			Hasher hasher = newHasher(algorithm);
+			long position = blockStart;
+
+			while (position < Math.min(blockStart + BLOCK_SIZE, end())) {
+				long limit = Math.min(Math.min(blockStart + BLOCK_SIZE, end()), awaitPast(position));
+				if (limit <= position) {
+					break;
+				}
+
+				buffer.clear();
+				buffer.limit((int) Math.min(buffer.capacity(), limit - position));
+				int n = file.read(buffer, position);
+				if (n <= 0) {
+					break;
+				}
+				hasher.update(buffer.array(), 0, n);
+				position += n;
+			}
+			blockHashes.add(hasher.hex());
+		}
+		return blockHashes;
+	}
+
+	private synchronized long end() {
+		return end;
+	}
+
+	// how far the file can be read, once that is past position or the transfer is over
+	private synchronized long awaitPast(long position) throws InterruptedException {
+		while (available <= position && !finished) {
+			wait();
+		}
+		return available;
+	}
+
+	private interface Hasher {
+		void update(byte[] bytes, int offset, int length);
+
+		String hex();
+	}
+
+	private static Hasher newHasher(String algorithm) {
+		switch (algorithm) {
+		case "CRC32":
+			return checksumHasher(new CRC32());
+		case "CRC32C":
+			try {
+				return checksumHasher((Checksum) Class.forName("java.util.zip.CRC32C").newInstance());
+			} catch (ReflectiveOperationException e) {
+				throw new IllegalArgumentException("CRC32C needs Java 9 or later");
+			}
+		case "SHA256":
+			try {
+				MessageDigest digest = MessageDigest.getInstance("SHA-256");
+				return new Hasher() {
+					@Override
+					public void update(byte[] bytes, int offset, int length) {
+						digest.update(bytes, offset, length);
+					}
+
+					@Override
+					public String hex() {
+						StringBuilder hex = new StringBuilder();
+						for (byte b : digest.digest()) {
+							hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+						}
+						return hex.toString();
+					}
+				};
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalArgumentException(e);
+			}
+		default:
+			throw new IllegalArgumentException("Unknown checksum " + algorithm);
+		}
+	}
+
+	private static Hasher checksumHasher(Checksum checksum) {
+		return new Hasher() {
+			@Override
+			public void update(byte[] bytes, int offset, int length) {
+				checksum.update(bytes, offset, length);
+			}
+
+			@Override
+			public String hex() {
+				return String.format("%08x", checksum.getValue());
+			}
+		};
+	}
+}
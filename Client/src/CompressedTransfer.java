@@ -0,0 +1,160 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Wire format of TYPE Z. The file goes out in chunks of up to CHUNK_SIZE bytes,
+ * each preceded by a 4 byte length: positive for a self-contained deflate stream,
+ * negative for that many bytes stored as they are (already compressed data, or a
+ * chunk that didn't shrink). The receiver knows the uncompressed size from RETR or
+ * SIZE, so it reads exactly the chunks that make it up and nothing more.
+ * Same class on the client and the server.
+ **/
+final class CompressedTransfer {
+
+	static final int CHUNK_SIZE = 64 * 1024;
+
+	// deflating these again costs CPU and saves nothing
+	private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<String>(Arrays.asList("7z", "avi", "bz2",
+			"docx", "gif", "gz", "jar", "jpeg", "jpg", "mkv", "mov", "mp3", "mp4", "png", "pptx", "rar", "tgz",
+			"webp", "xlsx", "xz", "zip", "zst"));
+
+	private CompressedTransfer() {
+	}
+
+	static boolean worthCompressing(String fileName) {
+		int dot = fileName.lastIndexOf('.');
+		return dot < 0 || !COMPRESSED_EXTENSIONS.contains(fileName.substring(dot + 1).toLowerCase());
+	}
+
+	// count bytes of in -> chunks on out. Returns the uncompressed bytes sent.
+	static long send(InputStream in, OutputStream out, long count, boolean compress) throws IOException {
+		byte[] chunk = new byte[(int) Math.min(CHUNK_SIZE, Math.max(count, 1))];
+		byte[] deflated = new byte[chunk.length];
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		DataOutputStream frames = new DataOutputStream(new BufferedOutputStream(out, CHUNK_SIZE + 4));
+		long sent = 0;
+
+		try {
+			while (sent < count) {
+				int length = readChunk(in, chunk, (int) Math.min(chunk.length, count - sent));
+				if (length <= 0) {
+					break;
+				}
+
+				int deflatedLength = compress ? deflate(deflater, chunk, length, deflated) : -1;
+				if (deflatedLength > 0) {
+					frames.writeInt(deflatedLength);
+					frames.write(deflated, 0, deflatedLength);
+				} else {
+					frames.writeInt(-length);
+					frames.write(chunk, 0, length);
+				}
+				sent += length;
+
+				if (length < chunk.length && sent < count) {
+					// the file got shorter, the receiver will notice it is missing bytes
+					break;
+				}
+			}
+			frames.flush();
+		} finally {
+			deflater.end();
+		}
+		return sent;
+	}
+
+	// chunks on in -> count bytes on out. Returns less than count only if the stream ended.
+	static long receive(InputStream in, OutputStream out, long count) throws IOException {
+		DataInputStream frames = new DataInputStream(in);
+		byte[] chunk = new byte[(int) Math.min(CHUNK_SIZE, Math.max(count, 1))];
+		byte[] deflated = new byte[chunk.length];
+		Inflater inflater = new Inflater();
+		long received = 0;
+
+		try {
+			while (received < count) {
+				int expected = (int) Math.min(chunk.length, count - received);
+				int header = frames.readInt();
+
+				if (header < 0) {
+					if (-header != expected) {
+						throw new IOException("Corrupt stored chunk of " + -header + " bytes");
+					}
+					frames.readFully(chunk, 0, expected);
+				} else {
+					if (header > deflated.length) {
+						throw new IOException("Corrupt deflated chunk of " + header + " bytes");
+					}
+					frames.readFully(deflated, 0, header);
+					inflate(inflater, deflated, header, chunk, expected);
+				}
+				out.write(chunk, 0, expected);
+				received += expected;
+			}
+		} catch (EOFException e) {
+			// connection gone mid-chunk, report what was written
+		} finally {
+			inflater.end();
+			out.flush();
+		}
+		return received;
+	}
+
+	private static int readChunk(InputStream in, byte[] chunk, int length) throws IOException {
+		int filled = 0;
+		while (filled < length) {
+			int n = in.read(chunk, filled, length - filled);
+			if (n < 0) {
+				break;
+			}
+			filled += n;
+		}
+		return filled;
+	}
+
+	// compressed length, or -1 if the chunk doesn't get smaller
+	private static int deflate(Deflater deflater, byte[] chunk, int length, byte[] deflated) {
+		deflater.reset();
+		deflater.setInput(chunk, 0, length);
+		deflater.finish();
+
+		int deflatedLength = 0;
+		while (!deflater.finished() && deflatedLength < length) {
+			deflatedLength += deflater.deflate(deflated, deflatedLength, length - deflatedLength);
+		}
+		return deflater.finished() && deflatedLength < length ? deflatedLength : -1;
+	}
+
+	private static void inflate(Inflater inflater, byte[] deflated, int length, byte[] chunk, int expected)
+			throws IOException {
+		inflater.reset();
+		inflater.setInput(deflated, 0, length);
+
+		int inflated = 0;
+		try {
+			while (inflated < expected && !inflater.finished()) {
+				int n = inflater.inflate(chunk, inflated, expected - inflated);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				inflated += n;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt deflated chunk", e);
+		}
+		if (inflated != expected || !inflater.finished()) {
+			throw new IOException("Deflated chunk inflated to " + inflated + " of " + expected + " bytes");
+		}
+	}
+}
@@ -0,0 +1,79 @@
+/**
+ * Latencies in microseconds, recorded HdrHistogram-style: exact below 128,
+ * above that in buckets no wider than 1/64 of their value, so any percentile is
+ * within ~1.6% whatever the range. Recording is an array increment; one
+ * histogram per thread, merged with add() once the threads are done.
+ **/
+final class LatencyHistogram {
+	private static final int SUB_BITS = 7;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int HALF = SUB_COUNT / 2;
+
+	private final long[] counts = new long[SUB_COUNT + (63 - (SUB_BITS - 1)) * HALF];
+	private long total;
+	private long max;
+	private long sum;
+
+	void record(long micros) {
+		long value = Math.max(0, micros);
+		counts[index(value)]++;
+		total++;
+		sum += value;
+		max = Math.max(max, value);
+	}
+
+	void add(LatencyHistogram other) {
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] += other.counts[i];
+		}
+		total += other.total;
+		sum += other.sum;
+		max = Math.max(max, other.max);
+	}
+
+	long count() {
+		return total;
+	}
+
+	long max() {
+		return max;
+	}
+
+	double mean() {
+		return total == 0 ? 0 : (double) sum / total;
+	}
+
+	// smallest recorded value that at least fraction of the values are at or below
+	long percentile(double fraction) {
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(fraction * total));
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(highestIn(i), max);
+			}
+		}
+		return max;
+	}
+
+	private static int index(long value) {
+		if (value < SUB_COUNT) {
+			return (int) value;
+		}
+		// shift so value lands in [HALF, SUB_COUNT), each shift is one more bucket set
+		int shift = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BITS - 1);
+		return SUB_COUNT + (shift - 1) * HALF + (int) ((value >>> shift) - HALF);
+	}
+
+	private static long highestIn(int index) {
+		if (index < SUB_COUNT) {
+			return index;
+		}
+		int shift = (index - SUB_COUNT) / HALF + 1;
+		long sub = (index - SUB_COUNT) % HALF + HALF;
+		return ((sub + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,402 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Headless load: N sessions, each on its own thread and connection, log in and
+ * then loop over a weighted mix of USER, LIST, RETR and STOR until time is up.
+ * Every reply is timed from sending the command to having read the whole reply
+ * (and file, for RETR and STOR), and the report gives throughput, bytes/s and
+ * p50/p99/p999 per command.
+ *
+ * java TCPClient load sessions=16 seconds=30 mix=USER:1,LIST:2,RETR:4,STOR:1 user=admin acct=server pass=cs725
+ *
+ * Sessions send the next command as soon as the last reply is in (closed loop),
+ * so a stalled server shows up as fewer operations rather than as queued ones.
+ **/
+class LoadGenerator {
+
+	private enum Op {
+		USER, ACCT, PASS, LIST, RETR, STOR
+	}
+
+	// the mix picks among these, USER being a whole USER/ACCT/PASS login
+	private static final Op[] MIXABLE = { Op.USER, Op.LIST, Op.RETR, Op.STOR };
+
+	// wait between reconnects, doubling while they keep failing
+	private static final long MIN_BACKOFF_MILLIS = 10;
+	private static final long MAX_BACKOFF_MILLIS = 1000;
+
+	private final String host;
+	private final int port;
+	private final int sessions;
+	private final long seconds;
+	private final long warmupSeconds;
+	private final int[] weights = new int[MIXABLE.length];
+	private final String user;
+	private final String acct;
+	private final String pass;
+	private final String listMode;
+	private final String retrFile;
+	private final byte[] payload;
+
+	// System.nanoTime() marks, set before any session starts
+	private long measureFrom;
+	private long stopAt;
+
+	LoadGenerator(Map<String, String> options) {
+		host = option(options, "host", TCPClient.HOST);
+		port = Integer.parseInt(option(options, "port", Integer.toString(TCPClient.PORT)));
+		sessions = Integer.parseInt(option(options, "sessions", "8"));
+		seconds = Long.parseLong(option(options, "seconds", "30"));
+		warmupSeconds = Long.parseLong(option(options, "warmup", "5"));
+		user = option(options, "user", "admin");
+		acct = options.get("acct");
+		pass = options.get("pass");
+		listMode = option(options, "list", "F");
+		retrFile = options.get("retr");
+
+		payload = new byte[Integer.parseInt(option(options, "size", "65536"))];
+		new Random(1).nextBytes(payload);
+
+		for (String entry : option(options, "mix", "USER:1,LIST:2,RETR:4,STOR:1").split(",")) {
+			String[] parts = entry.split(":");
+			Op op = Op.valueOf(parts[0].trim().toUpperCase());
+			int weight = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1;
+			for (int i = 0; i < MIXABLE.length; i++) {
+				if (MIXABLE[i] == op) {
+					weights[i] = weight;
+				}
+			}
+		}
+	}
+
+	private int weightOf(Op op) {
+		for (int i = 0; i < MIXABLE.length; i++) {
+			if (MIXABLE[i] == op) {
+				return weights[i];
+			}
+		}
+		return 0;
+	}
+
+	private static String option(Map<String, String> options, String name, String otherwise) {
+		String value = options.get(name);
+		return value != null ? value : otherwise;
+	}
+
+	// "name=value" words after "load"
+	static void main(String[] argv) throws InterruptedException {
+		Map<String, String> options = new HashMap<String, String>();
+		for (int i = 1; i < argv.length; i++) {
+			int equals = argv[i].indexOf('=');
+			if (equals > 0) {
+				options.put(argv[i].substring(0, equals), argv[i].substring(equals + 1));
+			}
+		}
+		new LoadGenerator(options).run();
+	}
+
+	void run() throws InterruptedException {
+		long now = System.nanoTime();
+		measureFrom = now + warmupSeconds * 1000000000L;
+		stopAt = measureFrom + seconds * 1000000000L;
+
+		List<Session> running = new ArrayList<Session>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < sessions; i++) {
+			Session session = new Session(i);
+			Thread thread = new Thread(session, "load-" + i);
+			running.add(session);
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		report(running);
+	}
+
+	private void report(List<Session> finished) {
+		Map<Op, LatencyHistogram> latencies = new EnumMap<Op, LatencyHistogram>(Op.class);
+		long[] errors = new long[Op.values().length];
+		long bytes = 0;
+		long reconnects = 0;
+
+		for (Op op : Op.values()) {
+			latencies.put(op, new LatencyHistogram());
+		}
+		for (Session session : finished) {
+			for (Op op : Op.values()) {
+				latencies.get(op).add(session.latencies.get(op));
+				errors[op.ordinal()] += session.errors[op.ordinal()];
+			}
+			bytes += session.bytes;
+			reconnects += session.reconnects;
+		}
+
+		long total = 0;
+		for (LatencyHistogram histogram : latencies.values()) {
+			total += histogram.count();
+		}
+		System.out.println(String.format("Local Message: %d sessions for %d s against %s:%d, %d reconnects", sessions,
+				seconds, host, port, reconnects));
+		System.out.println(String.format("Local Message: %d ops, %.1f ops/s, %.1f MB/s", total,
+				total / (double) seconds, bytes / (double) seconds / (1024 * 1024)));
+		System.out.println(String.format("%-6s %10s %10s %10s %10s %10s %10s %8s", "cmd", "count", "ops/s", "p50 ms",
+				"p99 ms", "p999 ms", "max ms", "errors"));
+		for (Op op : Op.values()) {
+			LatencyHistogram histogram = latencies.get(op);
+			if (histogram.count() == 0 && errors[op.ordinal()] == 0) {
+				continue;
+			}
+			System.out.println(String.format("%-6s %10d %10.1f %10.3f %10.3f %10.3f %10.3f %8d", op, histogram.count(),
+					histogram.count() / (double) seconds, histogram.percentile(0.50) / 1000.0,
+					histogram.percentile(0.99) / 1000.0, histogram.percentile(0.999) / 1000.0,
+					histogram.max() / 1000.0, errors[op.ordinal()]));
+		}
+	}
+
+	// one simulated client, its numbers only touched by its own thread until it ends
+	private class Session implements Runnable {
+		private final String storName;
+		private final Map<Op, LatencyHistogram> latencies = new EnumMap<Op, LatencyHistogram>(Op.class);
+		private final long[] errors = new long[Op.values().length];
+		private long bytes;
+		private long reconnects;
+		private long backoffMillis;
+
+		private SocketChannel channel;
+		private InputStream in;
+		private MessageCodec codec;
+		private boolean loggedIn;
+
+		// what an IOException is counted against; null while setting up, which isn't measured
+		private Op current;
+
+		Session(int id) {
+			storName = "load-" + id + ".bin";
+			for (Op op : Op.values()) {
+				latencies.put(op, new LatencyHistogram());
+			}
+		}
+
+		@Override
+		public void run() {
+			int weightTotal = 0;
+			for (int weight : weights) {
+				weightTotal += weight;
+			}
+
+			while (System.nanoTime() - stopAt < 0) {
+				try {
+					if (channel == null) {
+						// a refused connect isn't an error of the last command
+						current = null;
+						connect();
+					}
+					int pick = ThreadLocalRandom.current().nextInt(Math.max(1, weightTotal));
+					int i = 0;
+					while (i < weights.length - 1 && pick >= weights[i]) {
+						pick -= weights[i];
+						i++;
+					}
+					switch (MIXABLE[i]) {
+					case USER:
+						login();
+						break;
+					case LIST:
+						list();
+						break;
+					case RETR:
+						retr(retrFile != null ? retrFile : storName);
+						break;
+					case STOR:
+						stor(true);
+						break;
+					default:
+						break;
+					}
+					backoffMillis = 0;
+				} catch (IOException e) {
+					// counted against whatever was in flight, then start over on a new connection
+					if (current != null && System.nanoTime() - measureFrom >= 0) {
+						errors[current.ordinal()]++;
+					}
+					disconnect();
+					reconnects++;
+					backOff();
+				}
+			}
+			disconnect();
+		}
+
+		// so a server that is down doesn't have every session spinning on connect
+		private void backOff() {
+			backoffMillis = backoffMillis == 0 ? MIN_BACKOFF_MILLIS
+					: Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+			long sleep = ThreadLocalRandom.current().nextLong(backoffMillis / 2, backoffMillis + 1);
+			long left = (stopAt - System.nanoTime()) / 1000000L;
+			try {
+				Thread.sleep(Math.max(0, Math.min(sleep, left)));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		private void connect() throws IOException {
+			channel = SocketChannel.open(new InetSocketAddress(host, port));
+			in = Channels.newInputStream(channel);
+			codec = new MessageCodec(64 * 1024 * 1024);
+			codec.readMessage(in); // welcome
+			login();
+			if (retrFile == null && weightOf(Op.RETR) > 0) {
+				// something of our own to RETR
+				stor(false);
+			}
+		}
+
+		private void disconnect() {
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					// gone already
+				}
+				channel = null;
+			}
+		}
+
+		private void login() throws IOException {
+			if (!command(Op.USER, "USER " + user) || loggedIn) {
+				return;
+			}
+			if (acct != null && (!command(Op.ACCT, "ACCT " + acct) || loggedIn)) {
+				return;
+			}
+			if (pass != null) {
+				command(Op.PASS, "PASS " + pass);
+			}
+		}
+
+		// one command and its reply, false if the server said no
+		private boolean command(Op op, String message) throws IOException {
+			current = op;
+			long start = System.nanoTime();
+			send(message);
+			String reply = codec.readMessage(in);
+			loggedIn = reply.startsWith("!");
+			return finish(op, start, !reply.startsWith("-"));
+		}
+
+		private void list() throws IOException {
+			current = Op.LIST;
+			long start = System.nanoTime();
+			send("LIST " + listMode);
+			FirstByte out = new FirstByte();
+			bytes += codec.copyMessage(in, out);
+			finish(Op.LIST, start, out.first != '-');
+		}
+
+		private void retr(String fileName) throws IOException {
+			current = Op.RETR;
+			long start = System.nanoTime();
+			send("RETR " + fileName);
+			String reply = codec.readMessage(in);
+			if (reply.startsWith("-")) {
+				finish(Op.RETR, start, false);
+				return;
+			}
+			long size = Long.parseLong(reply.trim());
+			send("SEND");
+
+			InputStream data = codec.inputStream(in);
+			byte[] buffer = new byte[64 * 1024];
+			long received = 0;
+			while (received < size) {
+				int n = data.read(buffer, 0, (int) Math.min(buffer.length, size - received));
+				if (n < 0) {
+					throw new IOException("connection closed during RETR");
+				}
+				received += n;
+			}
+			bytes += received;
+			finish(Op.RETR, start, true);
+		}
+
+		private void stor(boolean timed) throws IOException {
+			current = timed ? Op.STOR : null;
+			long start = System.nanoTime();
+			send("STOR OLD " + storName);
+			if (codec.readMessage(in).startsWith("-")) {
+				finish(Op.STOR, start, false);
+				return;
+			}
+			send("SIZE " + payload.length);
+			if (codec.readMessage(in).startsWith("-")) {
+				finish(Op.STOR, start, false);
+				return;
+			}
+			ByteBuffer data = ByteBuffer.wrap(payload);
+			while (data.hasRemaining()) {
+				channel.write(data);
+			}
+			boolean saved = codec.readMessage(in).startsWith("+");
+			if (saved) {
+				bytes += payload.length;
+			}
+			finish(Op.STOR, start, saved);
+		}
+
+		// recorded unless it started during warmup or is setting up
+		private boolean finish(Op op, long start, boolean ok) {
+			if (current != null && start - measureFrom >= 0) {
+				if (ok) {
+					latencies.get(op).record((System.nanoTime() - start) / 1000);
+				} else {
+					errors[op.ordinal()]++;
+				}
+			}
+			return ok;
+		}
+
+		private void send(String message) throws IOException {
+			ByteBuffer bytes = ByteBuffer.wrap(message.concat("\0").getBytes(StandardCharsets.ISO_8859_1));
+			while (bytes.hasRemaining()) {
+				channel.write(bytes);
+			}
+		}
+	}
+
+	// throws the reply away, keeping its first byte for the response code
+	private static final class FirstByte extends OutputStream {
+		int first = -1;
+
+		@Override
+		public void write(int b) {
+			if (first < 0) {
+				first = b;
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			if (first < 0 && len > 0) {
+				first = b[off];
+			}
+		}
+	}
+}
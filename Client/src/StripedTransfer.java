@@ -0,0 +1,200 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Moves one file over several connections at once. Each connection logs in
+ * like the interactive one did, then carries one disjoint byte range (RANG)
+ * that is read from or written to the local file in place.
+ **/
+class StripedTransfer {
+	private final String host;
+	private final int port;
+	private final int stripes;
+
+	// USER/ACCT/PASS/CDIR lines the interactive session sent, replayed on every stripe
+	private final List<String> setup;
+
+	StripedTransfer(String host, int port, int stripes, List<String> setup) {
+		this.host = host;
+		this.port = port;
+		this.stripes = Math.max(1, stripes);
+		this.setup = setup;
+	}
+
+	// fetch all size bytes of fileName into target
+	void download(final String fileName, long size, File target) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(target, "rw")) {
+			raf.setLength(size);
+		}
+
+		final FileChannel file = FileChannel.open(target.toPath(), StandardOpenOption.WRITE);
+		try {
+			run("PGET " + fileName, size, (stripe, offset, count) -> {
+				stripe.expect("RETR " + fileName, ' ');
+				stripe.expect("RANG " + offset + " " + count, ' ');
+				stripe.send("SEND");
+
+				ReadableByteChannel in = stripe.dataChannel();
+				long received = 0;
+				while (received < count) {
+					long n = file.transferFrom(in, offset + received, count - received);
+					if (n <= 0) {
+						break;
+					}
+					received += n;
+				}
+				return received;
+			});
+		} finally {
+			file.close();
+		}
+	}
+
+	// push all of source to fileName, which the caller has already created empty on the server
+	void upload(File source, final String fileName) throws IOException {
+		final FileChannel file = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+		try {
+			run("PPUT " + fileName, file.size(), (stripe, offset, count) -> {
+				stripe.expect("STOR PRT " + fileName, '+');
+				stripe.expect("RANG " + offset + " " + count, '+');
+
+				long sent = 0;
+				while (sent < count) {
+					long n = file.transferTo(offset + sent, count - sent, stripe.channel);
+					if (n <= 0) {
+						break;
+					}
+					sent += n;
+				}
+				String reply = stripe.readReply();
+				if (reply.charAt(0) != '+') {
+					throw new IOException(reply);
+				}
+				return sent;
+			});
+		} finally {
+			file.close();
+		}
+	}
+
+	private interface RangeTask {
+		long transfer(Stripe stripe, long offset, long count) throws IOException;
+	}
+
+	private void run(String label, long size, final RangeTask task) throws IOException {
+		int count = (int) Math.max(1, Math.min(stripes, size));
+		long chunk = (size + count - 1) / count;
+
+		ExecutorService pool = Executors.newFixedThreadPool(count);
+		List<Future<long[]>> results = new ArrayList<Future<long[]>>();
+		long start = System.nanoTime();
+
+		for (int i = 0; i < count; i++) {
+			final long offset = i * chunk;
+			final long length = Math.max(0, Math.min(chunk, size - offset));
+
+			results.add(pool.submit(() -> {
+				long stripeStart = System.nanoTime();
+				try (Stripe stripe = new Stripe()) {
+					long moved = task.transfer(stripe, offset, length);
+					if (moved != length) {
+						throw new IOException("stripe at " + offset + " moved " + moved + " of " + length + " bytes");
+					}
+					return new long[] { moved, System.nanoTime() - stripeStart };
+				}
+			}));
+		}
+		pool.shutdown();
+
+		long total = 0;
+		try {
+			for (int i = 0; i < results.size(); i++) {
+				long[] result = results.get(i).get();
+				total += result[0];
+				System.out.println(String.format("Local Message: stripe %d %d bytes at %.1f MB/s", i, result[0],
+						rate(result[0], result[1])));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted");
+		} catch (ExecutionException e) {
+			throw new IOException(label + " failed: " + e.getCause().getMessage());
+		}
+
+		long elapsed = System.nanoTime() - start;
+		System.out.println(String.format("Local Message: %s %d bytes in %.2f s over %d connections, %.1f MB/s", label,
+				total, elapsed / 1e9, count, rate(total, elapsed)));
+	}
+
+	private static double rate(long bytes, long nanos) {
+		return nanos == 0 ? 0 : bytes / (nanos / 1e9) / (1024 * 1024);
+	}
+
+	// one extra logged-in connection
+	private class Stripe implements AutoCloseable {
+		private final SocketChannel channel;
+		private final InputStream in;
+		private final MessageCodec codec = new MessageCodec(64 * 1024);
+
+		Stripe() throws IOException {
+			channel = SocketChannel.open(new InetSocketAddress(host, port));
+			in = Channels.newInputStream(channel);
+
+			readReply(); // welcome
+			for (String line : setup) {
+				send(line);
+				readReply();
+			}
+		}
+
+		void send(String message) throws IOException {
+			ByteBuffer bytes = ByteBuffer.wrap(message.concat("\0").getBytes(StandardCharsets.ISO_8859_1));
+			while (bytes.hasRemaining()) {
+				channel.write(bytes);
+			}
+		}
+
+		String readReply() throws IOException {
+			return codec.readMessage(in);
+		}
+
+		void expect(String message, char code) throws IOException {
+			send(message);
+			String reply = readReply();
+			if (reply.isEmpty() || reply.charAt(0) != code) {
+				throw new IOException(message + ": " + reply);
+			}
+		}
+
+		ReadableByteChannel dataChannel() {
+			return codec.channel(channel);
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				send("DONE");
+				readReply();
+			} catch (IOException e) {
+				// already gone
+			}
+			channel.close();
+		}
+	}
+}
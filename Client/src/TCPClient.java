@@ -7,27 +7,54 @@
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
 
 class TCPClient {
 
+	static final String HOST = "localhost";
+	static final int PORT = 6789;
+
 	private Socket clientSocket;
 
 	private BufferedReader inFromUser;
 	private DataOutputStream outToServer;
-	private BufferedReader inFromServer;
+	private InputStream inFromServer;
+
+	// replies can be whole directory listings, so allow much more than the server does
+	private static final int MAX_MESSAGE_LENGTH = 64 * 1024 * 1024;
+	private MessageCodec codec = new MessageCodec(MAX_MESSAGE_LENGTH);
 
 	private InputStream dataInFromServer;
 	private OutputStream dataOutToServer;
 
 	private String fileNameToSave = "";
+	private static final String PARTIAL_SUFFIX = ".part";
+
+	// RETR/SEND pairs MGET sends ahead of the file it is reading
+	private static final int RETR_WINDOW = 8;
 	private String transmissionType = "B";
 
+	// CSUM algorithm the server confirmed, null when off
+	private String checksumAlgorithm;
+	private static final int REPAIR_ATTEMPTS = 3;
+
+	// the greeting said the server keeps content by hash, so STOR NEW/OLD is worth hashing first
+	private boolean serverDedups = false;
+
 	boolean loggedIn = false;
 	boolean userOK = false;
 
+	// accepted USER/ACCT/PASS/CDIR lines, so striped transfers can log their extra connections in
+	private List<String> sessionSetup = new ArrayList<String>();
+
 	private final String HOME_DIRECTORY = FileSystems.getDefault().getPath("storage").toString();
 
 	private enum ResponseCodes {
@@ -37,13 +64,14 @@ class TCPClient {
 	public TCPClient() throws UnknownHostException, IOException {
 		inFromUser = new BufferedReader(new InputStreamReader(System.in));
 
-		clientSocket = new Socket("localhost", 6789);
+		clientSocket = new Socket(HOST, PORT);
 
 		outToServer = new DataOutputStream(clientSocket.getOutputStream());
 
-		inFromServer = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+		inFromServer = clientSocket.getInputStream();
 
-		dataInFromServer = clientSocket.getInputStream();
+		// file bytes may already be sitting behind the last reply in the codec buffer
+		dataInFromServer = codec.inputStream(inFromServer);
 		dataOutToServer = clientSocket.getOutputStream();
 
 	}
@@ -58,6 +86,7 @@ class TCPClient {
 			serverWelcome = readMessageFromServer();
 			if (checkResponseCode(serverWelcome).equals(ResponseCodes.SUCCESS)) {
 				System.out.println("FROM SERVER: " + serverWelcome);
+				serverDedups = serverWelcome.endsWith(", dedup");
 				break;
 			}
 		}
@@ -85,6 +114,20 @@ class TCPClient {
 				} else if (command.toUpperCase().equals("STOR")) {
 					storCommand(sentence);
 					storeCommandTriggered = true;
+				} else if (command.toUpperCase().equals("PGET") || command.toUpperCase().equals("PPUT")) {
+					// local only: PGET/PPUT <connections> <file>
+					stripedCommand(sentence);
+					storeCommandTriggered = true;
+				} else if (command.toUpperCase().equals("LIST")) {
+					listCommand(sentence);
+					storeCommandTriggered = true;
+				} else if (command.toUpperCase().equals("MRET")) {
+					batchRetrCommand(sentence);
+					storeCommandTriggered = true;
+				} else if (command.toUpperCase().equals("MGET")) {
+					// local only: MGET <file> <file> ..., plain RETRs kept in flight
+					pipelinedRetrCommand(sentence);
+					storeCommandTriggered = true;
 				}
 			}
 
@@ -93,6 +136,8 @@ class TCPClient {
 					reply = readMessageFromServer();
 
 					checkTransmissionType(reply);
+					checkChecksumMode(reply);
+					rememberSetup(sentence, reply);
 
 					// Server responded RETR command with the size of the file to be sent
 					if (checkResponseCode(reply).equals(ResponseCodes.EMPTY)) {
@@ -117,6 +162,293 @@ class TCPClient {
 		// clientSocket.close();
 	}
 
+	private void rememberSetup(String sentence, String reply) {
+		String lowerCommand = sentence.split(" ")[0].toLowerCase();
+
+		if (!checkResponseCode(reply).equals(ResponseCodes.ERROR) && (lowerCommand.equals("user")
+				|| lowerCommand.equals("acct") || lowerCommand.equals("pass") || lowerCommand.equals("cdir"))) {
+			sessionSetup.add(sentence);
+		}
+	}
+
+	private void stripedCommand(String sentence) throws IOException {
+		String[] requestBreakdown = sentence.split(" ");
+
+		if (requestBreakdown.length < 3 || !loggedIn) {
+			System.out.println("Local message: usage PGET|PPUT <connections> <file>, after logging in");
+			return;
+		}
+
+		int connections;
+		try {
+			connections = Integer.parseInt(requestBreakdown[1]);
+		} catch (NumberFormatException e) {
+			System.out.println("Local message: invalid number of connections");
+			return;
+		}
+		String fileName = sentence.substring(sentence.indexOf(' ', 5) + 1);
+		StripedTransfer striped = new StripedTransfer(HOST, PORT, connections, sessionSetup);
+
+		if (requestBreakdown[0].toUpperCase().equals("PGET")) {
+			// size from the interactive connection, then hand the ranges out
+			sendMessageToServer("RETR " + fileName);
+			String reply = readMessageFromServer();
+			System.out.println("FROM SERVER: " + reply);
+			if (!checkResponseCode(reply).equals(ResponseCodes.EMPTY)) {
+				return;
+			}
+			sendMessageToServer("STOP");
+			readMessageFromServer();
+
+			long size = Long.parseLong(reply.trim());
+			File partFile = new File(HOME_DIRECTORY + "/" + fileName + PARTIAL_SUFFIX);
+			striped.download(fileName, size, partFile);
+
+			File target = new File(HOME_DIRECTORY + "/" + fileName);
+			target.delete();
+			partFile.renameTo(target);
+		} else {
+			File file = new File(HOME_DIRECTORY + "/" + fileName);
+			if (!file.isFile()) {
+				System.out.println("Local message: no file found in storage folder");
+				return;
+			}
+
+			// create or empty the file on the server, the stripes fill it in
+			sendMessageToServer("STOR OLD " + fileName);
+			String reply = readMessageFromServer();
+			System.out.println("FROM SERVER: " + reply);
+			if (checkResponseCode(reply).equals(ResponseCodes.ERROR)) {
+				return;
+			}
+			sendMessageToServer("SIZE 0");
+			reply = readMessageFromServer();
+			System.out.println("FROM SERVER: " + reply);
+			if (checkResponseCode(reply).equals(ResponseCodes.ERROR)) {
+				return;
+			}
+			if (isVerifying()) {
+				// the checksums of no bytes come before "+Saved", like after any other STOR
+				readChecksumFromServer();
+			}
+			System.out.println("FROM SERVER: " + readMessageFromServer());
+
+			striped.upload(file, fileName);
+		}
+	}
+
+	// listings can be any length, so they are printed as they arrive instead of read as one message
+	private void listCommand(String sentence) throws IOException {
+		if (sendMessageToServer(sentence)) {
+			System.out.print("FROM SERVER: ");
+			codec.copyMessage(inFromServer, System.out);
+			System.out.println();
+		}
+	}
+
+	// MRET <name or glob> ...: the server streams every match back, each behind a " <size> <name>" header
+	private void batchRetrCommand(String sentence) throws IOException {
+		if (!sendMessageToServer(sentence)) {
+			return;
+		}
+
+		String reply = readMessageFromServer();
+		System.out.println("FROM SERVER: " + reply);
+		if (!checkResponseCode(reply).equals(ResponseCodes.SUCCESS)) {
+			return;
+		}
+
+		int count = Integer.parseInt(reply.substring(1, reply.indexOf(' ')));
+		long start = System.nanoTime();
+		long bytes = 0;
+
+		for (int i = 0; i < count; i++) {
+			String header = readMessageFromServer();
+			if (checkResponseCode(header).equals(ResponseCodes.ERROR)) {
+				System.out.println("FROM SERVER: " + header);
+				continue;
+			}
+
+			int nameStart = header.indexOf(' ', 1);
+			long size = Long.parseLong(header.substring(1, nameStart));
+			if (!saveDownload(header.substring(nameStart + 1), size, false)) {
+				System.out.println("Local Message: server closed the connection");
+				return;
+			}
+			bytes += size;
+		}
+
+		System.out.println(String.format("Local Message: %d files, %d bytes in %.2f s", count, bytes,
+				(System.nanoTime() - start) / 1e9));
+	}
+
+	// MGET keeps up to RETR_WINDOW RETR/SEND pairs queued at the server instead of waiting for each size
+	private void pipelinedRetrCommand(String sentence) throws IOException {
+		String[] fileNames = sentence.substring(sentence.indexOf(' ') + 1).split(" ");
+
+		if (!loggedIn) {
+			System.out.println("Local Message: Invalid/Unauthorised command");
+			return;
+		}
+
+		long start = System.nanoTime();
+		long bytes = 0;
+		int requested = 0;
+
+		for (int i = 0; i < fileNames.length; i++) {
+			// top the window up in a single write
+			StringBuilder requests = new StringBuilder();
+			for (; requested < fileNames.length && requested < i + RETR_WINDOW; requested++) {
+				requests.append("RETR ").append(fileNames[requested]).append('\0').append("SEND").append('\0');
+			}
+			if (requests.length() > 0) {
+				dataOutToServer.write(requests.toString().getBytes(StandardCharsets.ISO_8859_1));
+			}
+
+			String reply = readMessageFromServer();
+			if (!checkResponseCode(reply).equals(ResponseCodes.EMPTY)) {
+				// no file, so the SEND behind it is answered as a stray command
+				System.out.println("FROM SERVER: " + reply + " (" + fileNames[i] + ")");
+				readMessageFromServer();
+				continue;
+			}
+
+			long size = Long.parseLong(reply.trim());
+			if (!saveDownload(fileNames[i], size, true)) {
+				System.out.println("Local Message: server closed the connection");
+				return;
+			}
+			bytes += size;
+		}
+
+		System.out.println(String.format("Local Message: %d files, %d bytes in %.2f s", fileNames.length, bytes,
+				(System.nanoTime() - start) / 1e9));
+	}
+
+	// next size bytes on the data stream become storage/fileName, by way of a .part file.
+	// After a SEND they come in the current TYPE and with the CSUM checksums, MRET sends them as they are
+	private boolean saveDownload(String fileName, long size, boolean afterSend) throws IOException {
+		File partFile = new File(HOME_DIRECTORY + "/" + fileName + PARTIAL_SUFFIX);
+		BlockChecksums checksums = null;
+		long received;
+
+		try (FileOutputStream dataWriteLocal = new FileOutputStream(partFile)) {
+			if (afterSend && isVerifying()) {
+				checksums = BlockChecksums.start(partFile.toPath(), checksumAlgorithm, 0, size);
+			}
+			received = receive(checksums == null ? dataWriteLocal : checksums.reporting(dataWriteLocal), size,
+					afterSend && transmissionType.equals("Z"));
+		}
+		if (received < size) {
+			return false;
+		}
+
+		if (checksums != null && !checksums.finish(received).equals(readChecksumFromServer())) {
+			// other RETRs are already queued behind this one, so no repair here
+			System.out.println("Local Message: checksum mismatch in " + fileName + ", RETR it again");
+			return true;
+		}
+
+		File target = new File(HOME_DIRECTORY + "/" + fileName);
+		target.delete();
+		partFile.renameTo(target);
+		return true;
+	}
+
+	private void checkChecksumMode(String reply) {
+		if (reply.startsWith("+Checksums on, ")) {
+			checksumAlgorithm = reply.substring(reply.lastIndexOf(' ') + 1);
+		} else if (reply.startsWith("+Checksums off")) {
+			checksumAlgorithm = null;
+		}
+	}
+
+	// ASCII mode rewrites the bytes on the way, the server doesn't send checksums for it
+	private boolean isVerifying() {
+		return checksumAlgorithm != null && !transmissionType.equals("A");
+	}
+
+	// "+Checksum <algorithm> <block size> <offset> <hash>..." follows every verified transfer
+	private String readChecksumFromServer() throws IOException {
+		String reply = readMessageFromServer();
+		if (!reply.startsWith("+Checksum ")) {
+			throw new IOException("expected checksums, got " + reply);
+		}
+		return reply.substring("+Checksum ".length());
+	}
+
+	// fetch the ranges of fileName that didn't match again, RANG by RANG, into partFile
+	private boolean repairDownload(String fileName, File partFile, List<long[]> ranges) throws IOException {
+		for (long[] range : ranges) {
+			boolean repaired = false;
+
+			for (int attempt = 0; attempt < REPAIR_ATTEMPTS && !repaired; attempt++) {
+				System.out.println("Local Message: checksum mismatch at byte " + range[0] + ", fetching "
+						+ range[1] + " bytes again");
+				sendMessageToServer("RETR " + fileName);
+				if (!checkResponseCode(readMessageFromServer()).equals(ResponseCodes.EMPTY)) {
+					return false;
+				}
+				sendMessageToServer("RANG " + range[0] + " " + range[1]);
+				if (!checkResponseCode(readMessageFromServer()).equals(ResponseCodes.EMPTY)) {
+					return false;
+				}
+				sendMessageToServer("SEND");
+
+				BlockChecksums checksums;
+				long received;
+				try (RandomAccessFile file = new RandomAccessFile(partFile, "rw")) {
+					file.seek(range[0]);
+					checksums = BlockChecksums.start(partFile.toPath(), checksumAlgorithm, range[0], range[1]);
+					received = receive(checksums.reporting(Channels.newOutputStream(file.getChannel())), range[1],
+							transmissionType.equals("Z"));
+				}
+				if (received < range[1]) {
+					checksums.cancel();
+					return false;
+				}
+				repaired = checksums.finish(received).equals(readChecksumFromServer());
+			}
+			if (!repaired) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// send the ranges of fileName that didn't match again as STOR PRT stripes
+	private boolean repairUpload(String fileName, File file, List<long[]> ranges) throws IOException {
+		for (long[] range : ranges) {
+			boolean repaired = false;
+
+			for (int attempt = 0; attempt < REPAIR_ATTEMPTS && !repaired; attempt++) {
+				System.out.println("Local Message: checksum mismatch at byte " + range[0] + ", sending "
+						+ range[1] + " bytes again");
+				sendMessageToServer("STOR PRT " + fileName);
+				if (checkResponseCode(readMessageFromServer()).equals(ResponseCodes.ERROR)) {
+					return false;
+				}
+				sendMessageToServer("RANG " + range[0] + " " + range[1]);
+				if (checkResponseCode(readMessageFromServer()).equals(ResponseCodes.ERROR)) {
+					return false;
+				}
+
+				BlockChecksums checksums = BlockChecksums.ofExisting(file.toPath(), checksumAlgorithm, range[0],
+						range[1]);
+				try (FileInputStream in = new FileInputStream(file)) {
+					in.getChannel().position(range[0]);
+					sendFileBytes(in, fileName, range[1]);
+				}
+				repaired = checksums.finish(range[1]).equals(readChecksumFromServer());
+				System.out.println("FROM SERVER: " + readMessageFromServer());
+			}
+			if (!repaired) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	private void checkTransmissionType(String reply) {
 
 		if (reply.toLowerCase().contains("using ascii mode")) {
@@ -130,15 +462,19 @@ class TCPClient {
 			transmissionType = "C";
 			System.out.println("Local Message: Using Continuous");
 
+		} else if (reply.toLowerCase().contains("using compressed mode")) {
+			transmissionType = "Z";
+			System.out.println("Local Message: Using Compressed");
+
 		}
 	}
 
 	private void storCommand(String sentence) throws IOException {
 
 		String[] requestBreakdown = sentence.split(" ");
+		String type = requestBreakdown[1].toUpperCase();
 
-		if (requestBreakdown[1].toUpperCase().equals("NEW") || requestBreakdown[1].toUpperCase().equals("OLD")
-				|| requestBreakdown[1].toUpperCase().equals("APP")) {
+		if (type.equals("NEW") || type.equals("OLD") || type.equals("APP") || type.equals("RES")) {
 			String fileName = sentence.substring(9); // STOR XXX {FILENAME} (9th char)
 
 			File file = new File(HOME_DIRECTORY + "/" + fileName);
@@ -163,7 +499,21 @@ class TCPClient {
 			BasicFileAttributes basic_attr = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
 			long size = basic_attr.size();
 
-			sendMessageToServer("SIZE " + Long.toString(size));
+			// RES: server replies "+Resume from <bytes it already has>"
+			long offset = 0;
+			if (type.equals("RES")) {
+				offset = Long.parseLong(reply.substring(reply.lastIndexOf(' ') + 1));
+			}
+
+			// whole-file stores to a dedup server carry the content hash, if it already has it the reply is "+Saved"
+			String sizeMessage = "SIZE " + Long.toString(Math.max(0, size - offset));
+			if (type.equals("RES")) {
+				// and a resume our length, so the server can refuse one that doesn't continue its copy
+				sizeMessage = sizeMessage + " " + size;
+			} else if (serverDedups && (type.equals("NEW") || type.equals("OLD"))) {
+				sizeMessage = sizeMessage + " " + sha256(file);
+			}
+			sendMessageToServer(sizeMessage);
 
 			String reply_send = readMessageFromServer();
 
@@ -171,41 +521,43 @@ class TCPClient {
 
 			System.out.println("FROM SERVER: " + reply_send);
 
+			if (reply_send.startsWith("+Saved")) {
+				return;
+			}
+
+			if (type.equals("RES") && offset > size) {
+				// the server's copy is longer than ours, so it isn't a piece of this file: send it again whole
+				System.out.println("Local Message: server has more of " + fileName + " than we do, storing it over");
+				storCommand("STOR OLD " + fileName);
+				return;
+			}
+
 			//send file to server
 			if (canSendFileResponse.equals(ResponseCodes.SUCCESS)) {
-				if (transmissionType.equals("A")) {
-					
-					int buffer;
-					FileInputStream in = new FileInputStream(file);
-					Writer w = new OutputStreamWriter(dataOutToServer, "US-ASCII");
-
-					while ((buffer = in.read()) > 0) {
-						char ch = (char) buffer;
-						w.write(ch);
-					}
-					
-					System.out.println("Client sent A mode!");
-					// r.close();
-					w.flush();
-					dataOutToServer.flush();
-					
-					System.out.println("FROM SERVER: " + readMessageFromServer());
-					return;
-					
-				} else {
-					byte buffer[] = new byte[1];
-					FileInputStream in = new FileInputStream(file);
+				// A mode is US-ASCII text, one byte per character, so both modes send the bytes as they are
+				// the file is all there, so it can be hashed while it is being sent
+				BlockChecksums checksums = isVerifying()
+						? BlockChecksums.ofExisting(file.toPath(), checksumAlgorithm, offset, size - offset)
+						: null;
+
+				try (FileInputStream in = new FileInputStream(file)) {
+					in.getChannel().position(offset);
+					sendFileBytes(in, fileName, size - offset);
+				}
 
-					while ((in.read(buffer)) > 0) {
-						dataOutToServer.write(buffer);
-					}
+				System.out.println("Client sent " + transmissionType + " mode!");
 
-					System.out.println("Client sent! B/C mode");
-					dataOutToServer.flush();
+				String theirs = checksums == null ? null : readChecksumFromServer();
+				String saved = readMessageFromServer();
+				System.out.println("FROM SERVER: " + saved);
 
-					System.out.println("FROM SERVER: " + readMessageFromServer());
-					return;
+				if (checksums != null && checkResponseCode(saved).equals(ResponseCodes.SUCCESS)) {
+					String ours = checksums.finish(size - offset);
+					if (!repairUpload(fileName, file, BlockChecksums.differences(ours, theirs, offset, size - offset))) {
+						System.out.println("Local Message: " + fileName + " still differs on the server");
+					}
 				}
+				return;
 			} else {
 				return;
 			}
@@ -215,6 +567,29 @@ class TCPClient {
 
 	}
 
+	private static String sha256(File file) throws IOException {
+		MessageDigest sha;
+		try {
+			sha = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+
+		byte[] buffer = new byte[64 * 1024];
+		try (FileInputStream in = new FileInputStream(file)) {
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				sha.update(buffer, 0, n);
+			}
+		}
+
+		StringBuilder hex = new StringBuilder();
+		for (byte b : sha.digest()) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
 	private void checkSpaceAndAcknowledge(String reply) throws IOException {
 
 		String[] replyBreakdown = reply.split(" ");
@@ -227,46 +602,61 @@ class TCPClient {
 			long spaceRequired = Long.parseLong(replyBreakdown[1]);
 
 			if (spaceRequired < availableSpace) {
-				
-				FileOutputStream dataWriteLocal = new FileOutputStream(HOME_DIRECTORY + "/" + fileNameToSave);
-				int fileSize = (int) spaceRequired;
-
-				if(transmissionType.equals("A"))
-				{
-					sendMessageToServer("SEND");
-
-					Reader r = new InputStreamReader(dataInFromServer, "US-ASCII");
-					//Writer w = new OutputStreamWriter(dataWriteLocal, "US-ASCII");
-					
-					int buffer;
-					int totalCount = 0;
-					
-					while((buffer = r.read()) > 0)
-					{
-						char ch = (char) buffer;
-						dataWriteLocal.write(ch);
-						totalCount += 1;
-						if(totalCount == fileSize) break;
+
+				// downloads land in a .part file so a dropped RETR can pick up where it stopped
+				File partFile = new File(HOME_DIRECTORY + "/" + fileNameToSave + PARTIAL_SUFFIX);
+				long offset = 0;
+
+				if (partFile.isFile() && partFile.length() > 0 && partFile.length() < spaceRequired) {
+					sendMessageToServer("REST " + partFile.length());
+
+					String restReply = readMessageFromServer();
+					System.out.println("FROM SERVER: " + restReply);
+
+					if (!checkResponseCode(restReply).equals(ResponseCodes.EMPTY)) {
+						return;
 					}
-					System.out.println("DONE");
+					offset = partFile.length();
+					System.out.println("Local Message: resuming " + fileNameToSave + " at byte " + offset);
 				}
-				else
-				{
-					byte[] bytes = new byte[1];
-					int  count;
-					int totalCount = 0;
-					sendMessageToServer("SEND");
-
-					while ((count = dataInFromServer.read(bytes)) > 0) {
-						dataWriteLocal.write(bytes, 0, count);
-						totalCount += count;
-						if (totalCount == fileSize)
-							break;
+
+				long fileSize = spaceRequired - offset;
+				long totalCount;
+
+				sendMessageToServer("SEND");
+
+				BlockChecksums checksums = null;
+				try (FileOutputStream dataWriteLocal = new FileOutputStream(partFile, offset > 0)) {
+					if (isVerifying()) {
+						checksums = BlockChecksums.start(partFile.toPath(), checksumAlgorithm, offset, fileSize);
 					}
+					totalCount = receive(checksums == null ? dataWriteLocal : checksums.reporting(dataWriteLocal),
+							fileSize, transmissionType.equals("Z"));
+				}
 
+				if (checksums != null) {
+					if (totalCount < fileSize) {
+						checksums.cancel();
+					} else {
+						String ours = checksums.finish(totalCount);
+						List<long[]> mismatches = BlockChecksums.differences(ours, readChecksumFromServer(), offset,
+								fileSize);
+						if (!repairDownload(fileNameToSave, partFile, mismatches)) {
+							System.out.println("Local Message: " + fileNameToSave + " failed verification, kept as "
+									+ partFile.getName());
+							return;
+						}
+					}
+				}
+
+				if (totalCount == fileSize) {
+					File target = new File(HOME_DIRECTORY + "/" + fileNameToSave);
+					target.delete();
+					partFile.renameTo(target);
 					System.out.println("DONE");
+				} else {
+					System.out.println("Local Message: transfer interrupted, RETR again to resume");
 				}
-			
 
 			} else {
 				// no space
@@ -276,6 +666,40 @@ class TCPClient {
 		}
 	}
 
+	// count bytes of a file to the server in the current TYPE
+	private void sendFileBytes(InputStream in, String fileName, long count) throws IOException {
+		if (transmissionType.equals("Z")) {
+			CompressedTransfer.send(in, dataOutToServer, count, CompressedTransfer.worthCompressing(fileName));
+		} else {
+			copy(in, dataOutToServer, count);
+		}
+	}
+
+	// count file bytes off the data stream, inflating them first in TYPE Z
+	private long receive(OutputStream out, long count, boolean compressed) throws IOException {
+		if (compressed) {
+			return CompressedTransfer.receive(dataInFromServer, out, count);
+		}
+		return copy(dataInFromServer, out, count);
+	}
+
+	// exactly count bytes, fewer only if the connection drops
+	private long copy(InputStream in, OutputStream out, long count) throws IOException {
+		byte[] buffer = new byte[64 * 1024];
+		long copied = 0;
+
+		while (copied < count) {
+			int n = in.read(buffer, 0, (int) Math.min(buffer.length, count - copied));
+			if (n < 0) {
+				break;
+			}
+			out.write(buffer, 0, n);
+			copied += n;
+		}
+		out.flush();
+		return copied;
+	}
+
 	private void closeConnection(String sentence) {
 		sendMessageToServer(sentence);
 	}
@@ -299,7 +723,8 @@ class TCPClient {
 
 		if (verifyMessageToServer(message)) {
 			try {
-				outToServer.writeBytes(message.concat(Character.toString('\0')));
+				// one write per message rather than writeBytes' one per character
+				outToServer.write(message.concat(Character.toString('\0')).getBytes(StandardCharsets.ISO_8859_1));
 				return true;
 			} catch (IOException e) {
 				try {
@@ -344,7 +769,8 @@ class TCPClient {
 		} else {
 			String lowerCommand = requestBreakdown[0].toLowerCase();
 
-			if (lowerCommand.equals("done") || lowerCommand.equals("send") || lowerCommand.equals("stop")) {
+			if (lowerCommand.equals("done") || lowerCommand.equals("send") || lowerCommand.equals("stop")
+					|| lowerCommand.equals("stat")) {
 				return true;
 			} else {
 				return false;
@@ -354,28 +780,20 @@ class TCPClient {
 	}
 
 	public static void main(String argv[]) throws Exception {
+		if (argv.length > 0 && argv[0].equals("load")) {
+			// headless: java TCPClient load sessions=... seconds=... mix=..., see LoadGenerator
+			LoadGenerator.main(argv);
+			return;
+		}
 		TCPClient client = new TCPClient();
-		client.start();
+		try {
+			client.start();
+		} catch (EOFException e) {
+			System.out.println("Local Message: server closed the connection");
+		}
 	}
 
-	private String readMessageFromServer() {
-		String requestBuffer = "";
-		int character = 0;
-
-		while (true) {
-			try {
-				character = inFromServer.read();
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-			// Check for null
-			if (character == 0) {
-				break;
-			}
-			String charBychar = Character.toString((char) character);
-			requestBuffer = requestBuffer.concat(charBychar);
-		}
-		return requestBuffer;
+	private String readMessageFromServer() throws IOException {
+		return codec.readMessage(inFromServer);
 	}
 }
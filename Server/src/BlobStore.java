@@ -0,0 +1,183 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.UUID;
+
+/**
+ * Content-addressed storage for -Dsftp.dedup=true. Every whole file STOR'd is kept
+ * once under storage/.blobs/<sha-256>, and the names clients see are hard links to
+ * it, so RETR, LIST, NAME and KILL work on them unchanged. A name is copied out to
+ * its own file (unshare) before anything writes into it in place.
+ **/
+final class BlobStore {
+
+	static final String DIRECTORY = ".blobs";
+
+	private static final String INCOMING_PREFIX = "incoming-";
+
+	// picked by target path, so two connections can't unshare the same name at once
+	private static final int LOCK_STRIPES = 64;
+
+	private final Path root;
+
+	private final Object[] unshareLocks = new Object[LOCK_STRIPES];
+
+	private BlobStore(Path root) {
+		this.root = root;
+		for (int i = 0; i < LOCK_STRIPES; i++) {
+			unshareLocks[i] = new Object();
+		}
+	}
+
+	// storage/.blobs, with blobs no name points at any more and half-finished uploads cleared out
+	static BlobStore open(Path home) {
+		Path root = home.resolve(DIRECTORY);
+		try {
+			Files.createDirectories(root);
+			BlobStore store = new BlobStore(root);
+			store.sweep();
+			return store;
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot open blob store " + root, e);
+		}
+	}
+
+	static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static String hex(byte[] digest) {
+		StringBuilder hex = new StringBuilder(digest.length * 2);
+		for (byte b : digest) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
+	// somewhere on the same file system to receive an upload before its hash is known.
+	// Not createTempFile: its owner-only permissions would end up on every name linked to the blob
+	Path newIncoming() throws IOException {
+		return Files.createFile(incomingPath());
+	}
+
+	// hash announced by the client: if we already hold that content, target becomes a link to it
+	boolean linkExisting(String sha, long size, Path target) throws IOException {
+		Path blob = blobFor(sha);
+		if (blob == null || !Files.isRegularFile(blob) || Files.size(blob) != size) {
+			return false;
+		}
+		if (!holds(blob)) {
+			// written into behind our back: drop it so the upload goes ahead and stores the real bytes
+			Log.warn(Log.NO_SESSION, "blob doesn't match its hash, dropped", blob, null);
+			Files.deleteIfExists(blob);
+			return false;
+		}
+		link(blob, target);
+		return true;
+	}
+
+	// a fully received upload: keep its bytes only if nothing with the same hash is stored yet
+	void commit(Path incoming, String sha, Path target) throws IOException {
+		Path blob = blobFor(sha);
+		if (Files.exists(blob)) {
+			Files.delete(incoming);
+		} else {
+			try {
+				Files.move(incoming, blob, StandardCopyOption.ATOMIC_MOVE);
+			} catch (FileAlreadyExistsException e) {
+				// same content arrived on another connection first
+				Files.delete(incoming);
+			}
+		}
+		link(blob, target);
+	}
+
+	// before APP/RES/PRT write into target, give it its own copy of the blob. Serialized per
+	// name: two PRT stripes that both saw it shared would each replace it, and the one that
+	// lost would be writing into a file nothing points at any more
+	void unshare(Path target) throws IOException {
+		synchronized (lockFor(target)) {
+			if (!Files.isRegularFile(target) || linkCount(target) <= 1) {
+				return;
+			}
+			Path copy = newIncoming();
+			Files.copy(target, copy, StandardCopyOption.REPLACE_EXISTING);
+			replace(copy, target);
+		}
+	}
+
+	private Object lockFor(Path target) {
+		int hash = target.toAbsolutePath().normalize().hashCode();
+		return unshareLocks[(hash ^ (hash >>> 16)) & (LOCK_STRIPES - 1)];
+	}
+
+	// the client only announced a hash, so check the bytes under that name really have it
+	// before anyone else's upload becomes a link to them
+	private static boolean holds(Path blob) throws IOException {
+		MessageDigest sha = newDigest();
+		byte[] buffer = new byte[64 * 1024];
+		try (InputStream in = Files.newInputStream(blob)) {
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				sha.update(buffer, 0, n);
+			}
+		}
+		return hex(sha.digest()).equals(blob.getFileName().toString());
+	}
+
+	private Path blobFor(String sha) {
+		if (sha.length() != 64 || !sha.matches("[0-9a-fA-F]+")) {
+			return null;
+		}
+		return root.resolve(sha.toLowerCase());
+	}
+
+	private Path incomingPath() {
+		return root.resolve(INCOMING_PREFIX + UUID.randomUUID() + ".tmp");
+	}
+
+	private void link(Path blob, Path target) throws IOException {
+		Path staging = incomingPath();
+		Files.createLink(staging, blob);
+		replace(staging, target);
+	}
+
+	// readers of target see the old file or the new one, never a half-written one
+	private static void replace(Path source, Path target) throws IOException {
+		try {
+			Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private static int linkCount(Path path) {
+		try {
+			return (Integer) Files.getAttribute(path, "unix:nlink");
+		} catch (UnsupportedOperationException | IllegalArgumentException | IOException e) {
+			// no link counts here, assume it is shared
+			return 2;
+		}
+	}
+
+	private void sweep() throws IOException {
+		try (DirectoryStream<Path> blobs = Files.newDirectoryStream(root)) {
+			for (Path blob : blobs) {
+				if (blob.getFileName().toString().startsWith(INCOMING_PREFIX) || linkCount(blob) == 1) {
+					Files.deleteIfExists(blob);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,1561 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * One connected client. Holds the per-connection state and runs the command set
+ * as a state machine: the engine hands in one NUL-terminated message at a time
+ * through handleMessage, and commands that need a follow-up message (TOBE,
+ * SEND/STOP, SIZE, ACCT/PASS after CDIR) park in a Prompt until it arrives.
+ **/
+class ClientSession {
+	private final SessionTransport transport;
+
+	// correlation id on every log line of this session
+	private final long logId = Log.newSession();
+
+	private boolean passwordValid;
+	private boolean usernameValid;
+	private boolean accountValid;
+
+	private boolean loggedIn;
+
+	private String transmissionType = "B"; // default binary
+
+	// CSUM: per-block checksums after each RETR/STOR transfer, null when off
+	private String checksumAlgorithm;
+
+	private final String HOME_DIRECTORY = FileSystems.getDefault().getPath("storage").toString();
+	private String currentDirectory = HOME_DIRECTORY;
+
+	// LIST is written out in pieces this big, and only listings up to the limit are cached
+	private static final int LIST_CHUNK = 64 * 1024;
+	private static final int CACHED_LISTING_LIMIT = 1024 * 1024;
+	private static final int FIRST_LIST_BATCH = 64;
+	private static final int LIST_BATCH = 4 * DirectoryLister.PARALLEL_THRESHOLD;
+
+	Users userDetail;
+
+	// shared by every session
+	private static final TransferScheduler transferScheduler = new TransferScheduler(ServerConfig.MAX_RATE,
+			ServerConfig.USER_RATE);
+
+	// pacing of the transfer in progress, null when nothing limits it
+	private TransferScheduler.Flow flow;
+
+	// shared by every session
+	private static final Metrics metrics = Metrics.register();
+
+	// shared by every session
+	private static final UserLookup users = userLookup(new Database(ServerConfig.DB_POOL_SIZE));
+
+	// shared by every session, null unless -Dsftp.dedup=true
+	private static final BlobStore blobStore = ServerConfig.DEDUP
+			? BlobStore.open(FileSystems.getDefault().getPath("storage"))
+			: null;
+
+	// shared by every session, null unless -Dsftp.cacheBytes is set
+	private static final FileCache fileCache = ServerConfig.CACHE_BYTES > 0
+			? new FileCache(ServerConfig.CACHE_BYTES, ServerConfig.CACHE_ADMIT_HITS)
+			: null;
+
+	// shared by every session, null if -Dsftp.writeBehind=false
+	private static final WriteBehind writeBehind = ServerConfig.WRITE_BEHIND
+			? new WriteBehind(ServerConfig.IO_THREADS, ServerConfig.IO_BUFFER_SIZE, ServerConfig.IO_BUFFERS,
+					ServerConfig.IO_DEPTH)
+			: null;
+
+	// shared by every session
+	private static final DiskSync diskSync = new DiskSync(DiskSync.policy(ServerConfig.FSYNC),
+			ServerConfig.FSYNC_WINDOW);
+
+	// shared by every session
+	private static final GenerationIndex generations = new GenerationIndex();
+
+	// shared by every session, null if -Dsftp.listCache=false
+	private static final ListingCache listingCache = ServerConfig.LIST_CACHE ? ListingCache.start() : null;
+
+	// the in-memory snapshot if asked for and it loads, otherwise cached database lookups
+	private static UserLookup userLookup(Database db) {
+		UserLookup directory = ServerConfig.USER_SNAPSHOT ? UserDirectory.start(db) : null;
+		return directory != null ? directory : UserCache.start(db, ServerConfig.USER_CACHE_TTL);
+	}
+
+	private enum ResponseCodes {
+		SUCCESS, ERROR, LOGGEDIN, EMPTY
+	}
+
+	// what the next message from the client is expected to be
+	private enum Prompt {
+		COMMAND, TOBE, SEND, SIZE, CDIR_AUTH
+	}
+
+	private Prompt prompt = Prompt.COMMAND;
+
+	private interface Handler {
+		void handle(ClientSession session, Command clientRequest);
+	}
+
+	// [prompt][verb] -> handler, null where the verb isn't accepted at that prompt
+	private static final Handler[][] HANDLERS = new Handler[Prompt.values().length][Command.Verb.values().length];
+
+	// reply for anything else at each prompt
+	private static final Handler[] FALLBACK = new Handler[Prompt.values().length];
+
+	static {
+		on(Prompt.COMMAND, Command.Verb.USER, ClientSession::userCommand);
+		on(Prompt.COMMAND, Command.Verb.ACCT, ClientSession::acctCommand);
+		on(Prompt.COMMAND, Command.Verb.PASS, ClientSession::passCommand);
+		on(Prompt.COMMAND, Command.Verb.TYPE, ClientSession::typeCommand);
+		on(Prompt.COMMAND, Command.Verb.LIST, ClientSession::listCommand);
+		on(Prompt.COMMAND, Command.Verb.CDIR, ClientSession::cdirCommand);
+		on(Prompt.COMMAND, Command.Verb.KILL, ClientSession::killCommand);
+		on(Prompt.COMMAND, Command.Verb.NAME, ClientSession::nameCommand);
+		on(Prompt.COMMAND, Command.Verb.DONE, (session, clientRequest) -> session.doneCommand());
+		on(Prompt.COMMAND, Command.Verb.RETR, ClientSession::retrCommand);
+		on(Prompt.COMMAND, Command.Verb.STOR, ClientSession::storCommand);
+		on(Prompt.COMMAND, Command.Verb.MRET, ClientSession::mretCommand);
+		on(Prompt.COMMAND, Command.Verb.CSUM, ClientSession::csumCommand);
+		on(Prompt.COMMAND, Command.Verb.STAT, ClientSession::statCommand);
+
+		on(Prompt.TOBE, Command.Verb.TOBE, ClientSession::tobeCommand);
+		on(Prompt.SEND, Command.Verb.SEND, ClientSession::sendCommand);
+		on(Prompt.SEND, Command.Verb.STOP, ClientSession::stopCommand);
+		on(Prompt.SEND, Command.Verb.REST, ClientSession::restCommand);
+		on(Prompt.SEND, Command.Verb.RANG, ClientSession::retrRangeCommand);
+		on(Prompt.SIZE, Command.Verb.SIZE, ClientSession::waitForFileSizeFromClient);
+		on(Prompt.SIZE, Command.Verb.RANG, ClientSession::storRangeCommand);
+		on(Prompt.CDIR_AUTH, Command.Verb.ACCT, ClientSession::cdirAuthCommand);
+		on(Prompt.CDIR_AUTH, Command.Verb.PASS, ClientSession::cdirAuthCommand);
+
+		FALLBACK[Prompt.COMMAND.ordinal()] = (session, clientRequest) -> session
+				.sendMessageToClient("invalid command", ResponseCodes.ERROR);
+		FALLBACK[Prompt.TOBE.ordinal()] = (session, clientRequest) -> session.sendMessageToClient(
+				"File wasn't renamed because of an invalid command or a missing argument", ResponseCodes.ERROR);
+		FALLBACK[Prompt.SEND.ordinal()] = (session, clientRequest) -> session
+				.sendMessageToClient("invalid command, RETR aborted", ResponseCodes.ERROR);
+		FALLBACK[Prompt.SIZE.ordinal()] = (session, clientRequest) -> {
+			session.sendMessageToClient("Invalid message received, expected SIZE ####", ResponseCodes.ERROR);
+			Log.info(session.logId, "expected SIZE, got", clientRequest.verb());
+		};
+		FALLBACK[Prompt.CDIR_AUTH.ordinal()] = (session, clientRequest) -> {
+			session.sendMessageToClient("invalid command", ResponseCodes.ERROR);
+			session.prompt = Prompt.CDIR_AUTH;
+		};
+	}
+
+	private static void on(Prompt prompt, Command.Verb verb, Handler handler) {
+		HANDLERS[prompt.ordinal()][verb.ordinal()] = handler;
+	}
+
+	// context kept between a command and the answer to its prompt
+	private File pendingFile;
+	private String pendingName;
+	private int pendingOperation;
+	private long pendingSize;
+	private long pendingOffset;
+	private long pendingEnd;
+	private String pendingHash;
+
+	public ClientSession(SessionTransport transport) {
+		this.transport = transport;
+	}
+
+	long logId() {
+		return logId;
+	}
+
+	public void onConnect() {
+		metrics.sessionOpened();
+		Log.info(logId, "connection opened", null);
+		// clients only hash what they STOR if we say the hash can save them the upload
+		sendMessageToClient(blobStore != null ? "cjan957 SFTP Service, dedup" : "cjan957 SFTP Service",
+				ResponseCodes.SUCCESS);
+	}
+
+	// the connection has gone, after onConnect
+	public void onClose() {
+		metrics.sessionClosed();
+		Log.info(logId, "connection closed", null);
+	}
+
+	public void handleMessage(String message) {
+		long started = System.nanoTime();
+		Command clientRequest = Command.parse(message);
+
+		metrics.received(message.length() + 1);
+		dispatch(clientRequest);
+		metrics.command(clientRequest.verb(), System.nanoTime() - started);
+	}
+
+	private void dispatch(Command clientRequest) {
+		Prompt current = prompt;
+		prompt = Prompt.COMMAND;
+
+		Handler handler = HANDLERS[current.ordinal()][clientRequest.verb().ordinal()];
+
+		if (current == Prompt.COMMAND && !validateClientRequest(clientRequest, handler)) {
+			sendMessageToClient("invalid command", ResponseCodes.ERROR);
+			return;
+		}
+		if (handler == null) {
+			handler = FALLBACK[current.ordinal()];
+		}
+		handler.handle(this, clientRequest);
+	}
+
+	private void cdirAuthCommand(Command clientRequest) {
+		if (authenticateCDIR(clientRequest)) {
+			currentDirectory = pendingFile.getPath();
+			sendMessageToClient("Changed working dir to " + currentDirectory, ResponseCodes.LOGGEDIN);
+		} else {
+			prompt = Prompt.CDIR_AUTH;
+		}
+	}
+
+	private void storCommand(Command clientRequest) {
+		String[] requestBreakdown = clientRequest.words();
+
+		if(requestBreakdown.length < 3)
+		{
+			sendMessageToClient("Invalid arguments, expected STOR { NEW | OLD | APP | RES | PRT } file", ResponseCodes.ERROR);
+			return;
+		}
+		
+		String type = requestBreakdown[1].toUpperCase();
+		String fileName = clientRequest.rest(2); // STOR XXX {FILENAME}
+		
+		if(type.equals("NEW") || type.equals("OLD") || type.equals("APP") || type.equals("RES")
+				|| type.equals("PRT"))
+		{
+			File file = new File(currentDirectory + "/" + fileName);
+			pendingOffset = 0;
+
+			if(inBlobStore(file))
+			{
+				sendMessageToClient("Invalid file name, STOR aborted", ResponseCodes.ERROR);
+				return;
+			}
+
+			switch (type)
+			{
+			case "NEW":
+				//Existing file: store as its next generation
+				if(file.exists())
+				{
+					sendMessageToClient("File exists, will create new generation of file", ResponseCodes.SUCCESS);		
+					expectFileSize(fileName, file, 2);
+				}
+				else
+				{
+					//+File does not exist, will create new file
+					sendMessageToClient("File does not exist, will create new file", ResponseCodes.SUCCESS);
+					expectFileSize(fileName, file, 1);
+
+				}
+				
+				break;
+			case "OLD":
+				//overwrite or create a new one
+				if(file.exists())
+				{
+					//Will write over old file
+					sendMessageToClient("Will write over old file", ResponseCodes.SUCCESS);
+					expectFileSize(fileName, file, 3);
+
+					
+				}
+				else
+				{
+					//will create new file
+					sendMessageToClient("Will create new file", ResponseCodes.SUCCESS);
+					expectFileSize(fileName, file, 1);
+
+				}
+				
+				break;
+			case "APP":
+				//append or create
+				if(file.exists())
+				{
+					sendMessageToClient("Will append to file", ResponseCodes.SUCCESS);
+					expectFileSize(fileName, file, 4);
+
+				}
+				else
+				{
+					sendMessageToClient("Will create file", ResponseCodes.SUCCESS);
+					expectFileSize(fileName, file, 1);
+
+				}
+				break;
+			case "PRT":
+				//one stripe of a parallel upload, RANG says where it goes
+				sendMessageToClient("Will write part of file", ResponseCodes.SUCCESS);
+				expectFileSize(fileName, file, 6);
+				break;
+			case "RES":
+				//resume an interrupted upload, the client only sends what we don't have yet
+				pendingOffset = file.isFile() ? file.length() : 0;
+				sendMessageToClient("Resume from " + pendingOffset, ResponseCodes.SUCCESS);
+				expectFileSize(fileName, file, 5);
+				break;
+			default:
+				sendMessageToClient("Invalid type, STOR aborted", ResponseCodes.ERROR);
+				break;
+					
+			}			
+		}
+		else
+		{
+			sendMessageToClient("Invalid type, STOR aborted", ResponseCodes.ERROR);
+		}
+	}
+
+	
+	//Operation: 1 = create a new file, 2 = NEW generation 3 = Overwrite, 4 = Append, 5 = Resume at pendingOffset,
+	//6 = Write a part at pendingOffset
+	private void expectFileSize(String fileName, File file, int operation) {
+		pendingName = fileName;
+		pendingFile = file;
+		pendingOperation = operation;
+		pendingHash = null;
+		prompt = Prompt.SIZE;
+	}
+
+	private void waitForFileSizeFromClient(Command clientResponse) {
+		//Response should be: "SIZE ######"
+		String[] requestBreakdown = clientResponse.words();
+
+		if(requestBreakdown.length > 1)
+		{
+			long fileSize = 0;
+			try {
+				fileSize = Long.parseLong(requestBreakdown[1]);
+			}
+			catch (NumberFormatException e){
+				sendMessageToClient("Invalid file size, STOR aborted", ResponseCodes.ERROR);
+				return;
+			}
+
+			if(pendingOperation == 5)
+			{
+				// "SIZE #### <length of the client's file>", the upload has to continue what we have
+				if(!resumesStoredFile(requestBreakdown, fileSize))
+				{
+					sendMessageToClient("Stored file is longer than yours, STOR aborted", ResponseCodes.ERROR);
+					return;
+				}
+			}
+			// optional "SIZE #### <sha-256>" lets a duplicate upload finish without sending the bytes
+			else if(requestBreakdown.length > 2)
+			{
+				pendingHash = requestBreakdown[2];
+			}
+		
+			acceptUpload(fileSize);
+		}
+		else
+		{
+			sendMessageToClient("Invalid message received, expected SIZE ####", ResponseCodes.ERROR);
+			Log.info(logId, "expected SIZE, got", clientResponse.verb());
+		}
+	}
+
+	// a client that names its file length must be resuming exactly where the stored file ends
+	private boolean resumesStoredFile(String[] requestBreakdown, long fileSize) {
+		if(fileSize < 0)
+		{
+			return false;
+		}
+		if(requestBreakdown.length < 3)
+		{
+			return true;
+		}
+		try {
+			return Long.parseLong(requestBreakdown[2]) == pendingOffset + fileSize;
+		}
+		catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	// RANG <offset> <count> instead of SIZE: write count bytes at offset, for striped uploads
+	private void storRangeCommand(Command clientRequest) {
+		long[] range = parseRange(clientRequest);
+
+		if(range == null)
+		{
+			sendMessageToClient("Invalid range, STOR aborted", ResponseCodes.ERROR);
+			return;
+		}
+		pendingOffset = range[0];
+		acceptUpload(range[1]);
+	}
+
+	private void acceptUpload(long fileSize) {
+		File file = pendingFile;
+		int operation = pendingOperation;
+
+		File localPath = new File(currentDirectory);
+		long availableSpace = localPath.getUsableSpace();
+		boolean room = fileSize < availableSpace;
+		boolean duplicate = pendingHash != null && blobStore != null && operation <= 3;
+
+		if(!room && !duplicate)
+		{
+			sendMessageToClient("Not enough room, don't send it", ResponseCodes.ERROR);
+			return;
+		}
+
+		String fileName;
+		try {
+			fileName = resolveStoreName(pendingName, operation);
+		} catch (IOException e) {
+			Log.warn(logId, "couldn't create a new generation of", pendingName, e);
+			sendMessageToClient("Couldn't create a new generation, STOR aborted", ResponseCodes.ERROR);
+			return;
+		}
+		File stored = new File(currentDirectory + "/" + fileName);
+
+		if(duplicate)
+		{
+			try {
+				if(blobStore.linkExisting(pendingHash, fileSize, stored.toPath()))
+				{
+					invalidateCached(stored);
+					sendMessageToClient("Saved " + fileName + ", content already stored", ResponseCodes.SUCCESS);
+					return;
+				}
+			} catch (IOException e) {
+				Log.warn(logId, "couldn't link stored content to", fileName, e);
+			}
+		}
+		
+		if(room)
+		{
+			sendMessageToClient("ok, waiting for file", ResponseCodes.SUCCESS);
+
+			final long offset = pendingOffset;
+			transport.runTransfer(
+					() -> shaped(fileSize, () -> receiveFile(fileName, file, operation, fileSize, offset)));
+		}
+		else
+		{
+			if(operation == 2)
+			{
+				// give back the generation that was claimed for it
+				stored.delete();
+			}
+			sendMessageToClient("Not enough room, don't send it", ResponseCodes.ERROR);
+		}
+	}
+
+
+	// "RANG <offset> <count>" -> {offset, count}, null if malformed
+	private long[] parseRange(Command clientRequest) {
+		String[] requestBreakdown = clientRequest.words();
+
+		if(requestBreakdown.length != 3)
+		{
+			return null;
+		}
+		try {
+			long offset = Long.parseLong(requestBreakdown[1]);
+			long count = Long.parseLong(requestBreakdown[2]);
+			if(offset < 0 || count < 0)
+			{
+				return null;
+			}
+			return new long[] { offset, count };
+		}
+		catch (NumberFormatException e){
+			return null;
+		}
+	}
+
+	private void receiveFile(String fileName, File file, int operation, long fileSize, long offset) {
+		InputStream dataInFromClient = dataIn();
+		long started = System.nanoTime();
+
+		invalidateCached(new File(currentDirectory + "/" + fileName));
+
+		if(blobStore != null && operation <= 3)
+		{
+			receiveIntoBlobStore(fileName, fileSize);
+			return;
+		}
+
+		//do file operations
+		long totalCount;
+		BlockChecksums checksums = null;
+		File target = new File(currentDirectory + "/" + fileName);
+		try (FileChannel fileChannel = openForStore(target, operation, offset)) {
+			long position = fileChannel.position();
+			if(isVerifying())
+			{
+				checksums = BlockChecksums.start(target.toPath(), checksumAlgorithm, position, fileSize);
+			}
+			
+			// never read more than SIZE bytes, anything after that is the next control message
+			if(transmissionType.equals("A"))
+			{
+				totalCount = FileTransfer.copy(dataInFromClient, Channels.newOutputStream(fileChannel), fileSize);
+			}
+			else if(transmissionType.equals("Z"))
+			{
+				totalCount = CompressedTransfer.receive(dataInFromClient,
+						reporting(checksums, Channels.newOutputStream(fileChannel)), fileSize);
+			}
+			else if(writeBehind != null)
+			{
+				totalCount = writeBehind.receive(dataChannel(), fileChannel, position, fileSize, checksums);
+			}
+			else 
+			{
+				totalCount = FileTransfer.receiveRange(dataChannel(), fileChannel, position, fileSize, checksums);
+			}
+			diskSync.sync(fileChannel);
+			
+			Log.sampled(Log.Level.INFO, logId, "stored", fileName);
+			metrics.stored(totalCount, System.nanoTime() - started);
+
+			if(checksums != null)
+			{
+				sendMessageToClient("Checksum " + checksums.finish(totalCount), ResponseCodes.SUCCESS);
+			}
+			
+		} catch (IOException e1) {
+			Log.warn(logId, "STOR failed", fileName, e1);
+			if(checksums != null)
+			{
+				checksums.cancel();
+			}
+			return;
+		}
+
+		invalidateCached(new File(currentDirectory + "/" + fileName));
+
+		if(totalCount < fileSize)
+		{
+			sendMessageToClient("Connection lost, received " + totalCount + " of " + fileSize + " bytes", ResponseCodes.ERROR);
+			return;
+		}
+						
+		sendMessageToClient("Saved " + fileName, ResponseCodes.SUCCESS);
+	}
+
+	// the name a STOR will be saved under. For a NEW generation that is the next "name(n).ext",
+	// which is created empty here so no other upload can take it
+	private String resolveStoreName(String fileName, int operation) throws IOException {
+		if(operation == 2)
+		{
+			List<String> dotBreakdown = new LinkedList<String>(Arrays.asList(fileName.split("\\.")));
+			
+			if(dotBreakdown.size() >= 2)
+			{
+				String fileExtension = dotBreakdown.get(dotBreakdown.size() - 1);
+				dotBreakdown.remove(dotBreakdown.size() - 1);
+				String fileNameNoExt = String.join(".", dotBreakdown);					
+				
+				fileName = generations.allocate(new File(currentDirectory), fileNameNoExt, fileExtension);
+			}
+		}
+		return fileName;
+	}
+
+
+	// whole-file STOR with dedup on: hash while receiving, then the name becomes a link to the blob
+	private void receiveIntoBlobStore(String fileName, long fileSize) {
+		InputStream dataInFromClient = dataIn();
+		long started = System.nanoTime();
+		MessageDigest sha = BlobStore.newDigest();
+		long totalCount;
+		Path incoming = null;
+		BlockChecksums checksums = null;
+
+		try {
+			incoming = blobStore.newIncoming();
+			if(isVerifying())
+			{
+				checksums = BlockChecksums.start(incoming, checksumAlgorithm, 0, fileSize);
+			}
+			try (OutputStream out = reporting(checksums, new DigestOutputStream(Files.newOutputStream(incoming), sha))) {
+				if(transmissionType.equals("Z"))
+				{
+					totalCount = CompressedTransfer.receive(dataInFromClient, out, fileSize);
+				}
+				else
+				{
+					totalCount = FileTransfer.copy(dataInFromClient, out, fileSize);
+				}
+			}
+
+			Log.sampled(Log.Level.INFO, logId, "stored", fileName);
+			metrics.stored(totalCount, System.nanoTime() - started);
+			if(checksums != null)
+			{
+				sendMessageToClient("Checksum " + checksums.finish(totalCount), ResponseCodes.SUCCESS);
+				checksums = null;
+			}
+			if(totalCount == fileSize)
+			{
+				diskSync.sync(incoming);
+				blobStore.commit(incoming, BlobStore.hex(sha.digest()), new File(currentDirectory + "/" + fileName).toPath());
+			}
+		} catch (IOException e1) {
+			Log.warn(logId, "STOR failed", fileName, e1);
+			if(checksums != null)
+			{
+				checksums.cancel();
+			}
+			return;
+		} finally {
+			try {
+				if(incoming != null)
+				{
+					Files.deleteIfExists(incoming);
+				}
+			} catch (IOException e) {
+				Log.warn(logId, "couldn't remove upload", incoming, e);
+			}
+		}
+
+		invalidateCached(new File(currentDirectory + "/" + fileName));
+
+		if(totalCount < fileSize)
+		{
+			sendMessageToClient("Connection lost, received " + totalCount + " of " + fileSize + " bytes", ResponseCodes.ERROR);
+			return;
+		}
+
+		sendMessageToClient("Saved " + fileName, ResponseCodes.SUCCESS);
+	}
+
+	// positioned where the upload's first byte goes
+	private FileChannel openForStore(File file, int operation, long offset) throws IOException {
+		Path path = file.toPath();
+
+		if (blobStore != null) {
+			// written in place, the other names for the same content must not see it
+			blobStore.unshare(path);
+		}
+
+		switch (operation) {
+		case 4:
+			FileChannel appending = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			appending.position(appending.size());
+			return appending;
+		case 6:
+			// other stripes may be writing the rest of the file, leave it as it is
+			FileChannel part = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			part.position(offset);
+			return part;
+		case 5:
+			// drop anything past the offset the client was told to resume from
+			FileChannel resuming = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			resuming.truncate(offset);
+			resuming.position(offset);
+			return resuming;
+		default:
+			return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+		}
+	}
+
+	private void retrCommand(Command clientRequest) {
+		// TODO Auto-generated method stub
+		String[] requestBreakdown = clientRequest.words();
+		
+		if(requestBreakdown.length > 1)
+		{
+			String argument = clientRequest.argument();
+				
+			File file = new File(currentDirectory + "/" + argument);
+			long size;
+				
+			if(!file.isFile() || !file.exists() || inBlobStore(file))
+			{
+				sendMessageToClient("File doesn't exist", ResponseCodes.ERROR);
+				return;
+			}
+			
+			try {
+				BasicFileAttributes basic_attr = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+				size = basic_attr.size();
+				
+				sendMessageToClient(Long.toString(size), ResponseCodes.EMPTY);
+			}
+			catch(Exception e)
+			{
+				sendMessageToClient("File doesn't exist", ResponseCodes.ERROR);
+				return;
+			}
+			
+			pendingFile = file;
+			pendingSize = size;
+			pendingOffset = 0;
+			pendingEnd = size;
+			prompt = Prompt.SEND;
+		}
+			
+	}
+	// sends bytes [offset, end) of the file
+	private void sendFile(File file, long offset, long end) throws IOException {
+		OutputStream dataOutToClient = dataOut();
+
+		if(transmissionType.equals("A"))
+		{			
+			int buffer;
+			try (FileInputStream source = new FileInputStream(file)) {
+				source.getChannel().position(offset);
+				InputStream in = new BufferedInputStream(source);
+				Writer w = new BufferedWriter(new OutputStreamWriter(dataOutToClient, "US-ASCII"));
+				
+				// exactly the bytes announced, the control stream carries on right after them
+				long remaining = end - offset;
+				while(remaining > 0 && (buffer = in.read()) >= 0)
+				{
+					char ch = (char) buffer;
+					w.write(ch);
+					remaining--;
+				}
+				w.flush();
+			}
+		}
+		else if(transmissionType.equals("Z"))
+		{
+			try (FileInputStream in = new FileInputStream(file)) {
+				in.getChannel().position(offset);
+				CompressedTransfer.send(in, dataOutToClient, end - offset,
+						CompressedTransfer.worthCompressing(file.getName()));
+			}
+		}
+		//B and C modes are the same.
+		else
+		{
+			ByteBuffer cached = fileCache == null ? null : fileCache.get(file);
+
+			if (cached != null && cached.limit() >= end) {
+				WritableByteChannel socketChannel = socketChannel();
+				FileTransfer.sendBuffer(cached, offset, end - offset,
+						socketChannel != null ? socketChannel : Channels.newChannel(dataOutToClient));
+			} else {
+				try (FileInputStream in = new FileInputStream(file)) {
+					sendBinary(in, offset, end);
+				}
+			}
+		}
+	}
+
+	// runs transfer with its data going through flow, if anything limits this user's bandwidth
+	private void shaped(long size, Runnable transfer) {
+		flow = transferScheduler.open(userDetail, size);
+		try {
+			transfer.run();
+		} finally {
+			flow = null;
+		}
+	}
+
+	private InputStream dataIn() {
+		InputStream in = transport.dataIn();
+		return flow == null ? in : flow.shape(in);
+	}
+
+	private ReadableByteChannel dataChannel() {
+		ReadableByteChannel in = transport.dataChannel();
+		return flow == null ? in : flow.shape(in);
+	}
+
+	private OutputStream dataOut() {
+		OutputStream out = transport.dataOut();
+		return flow == null ? out : flow.shape(out);
+	}
+
+	// the socket for zero-copy sends, or null if there isn't one
+	private WritableByteChannel socketChannel() {
+		WritableByteChannel out = transport.channel();
+		return flow == null || out == null ? out : flow.shape(out);
+	}
+
+	// only the size announced to the client is sent, so the stream stays in step
+	private long sendBinary(FileInputStream in, long offset, long end) throws IOException {
+		WritableByteChannel socketChannel = socketChannel();
+
+		if (socketChannel != null) {
+			return FileTransfer.sendRange(in.getChannel(), offset, end - offset, socketChannel);
+		}
+		in.getChannel().position(offset);
+		return FileTransfer.copy(in, dataOut(), end - offset);
+	}
+
+	// MRET <name or glob> ... : every matching file in the current directory in one response,
+	// "+<n> files follow" and then per file a " <size> <name>" message and exactly size raw bytes.
+	// Saves the RETR/size/SEND round trips per file when fetching many small ones.
+	private void mretCommand(Command clientRequest) {
+		if (!loggedIn) {
+			sendMessageToClient("Not logged in", ResponseCodes.ERROR);
+			return;
+		}
+
+		String[] requestBreakdown = clientRequest.words();
+		if (!hasArgument(requestBreakdown)) {
+			sendMessageToClient("Missing file name or pattern", ResponseCodes.ERROR);
+			return;
+		}
+
+		List<PathMatcher> matchers = new ArrayList<PathMatcher>();
+		try {
+			for (int i = 1; i < requestBreakdown.length; i++) {
+				if (!requestBreakdown[i].isEmpty()) {
+					matchers.add(FileSystems.getDefault().getPathMatcher("glob:" + requestBreakdown[i]));
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			sendMessageToClient("Invalid pattern", ResponseCodes.ERROR);
+			return;
+		}
+
+		// sorted so the client gets a stable order
+		TreeMap<String, File> files = new TreeMap<String, File>();
+		try (DirectoryStream<Path> directory = Files.newDirectoryStream(new File(currentDirectory).toPath())) {
+			for (Path path : directory) {
+				Path name = path.getFileName();
+				for (PathMatcher matcher : matchers) {
+					if (matcher.matches(name) && Files.isRegularFile(path)) {
+						files.put(name.toString(), path.toFile());
+						break;
+					}
+				}
+			}
+		} catch (IOException e) {
+			sendMessageToClient("Files access errors", ResponseCodes.ERROR);
+			return;
+		}
+
+		if (files.isEmpty()) {
+			sendMessageToClient("No files match", ResponseCodes.ERROR);
+			return;
+		}
+
+		long size = 0;
+		for (File file : files.values()) {
+			size += file.length();
+		}
+		final long total = size;
+
+		sendMessageToClient(files.size() + " files follow", ResponseCodes.SUCCESS);
+		transport.runTransfer(() -> shaped(total, () -> {
+			try {
+				long started = System.nanoTime();
+				long sent = 0;
+				for (Map.Entry<String, File> entry : files.entrySet()) {
+					sent += sendBatchEntry(entry.getKey(), entry.getValue());
+				}
+				metrics.retrieved(sent, System.nanoTime() - started);
+				Log.sampled(Log.Level.INFO, logId, "MRET sent", clientRequest);
+			} catch (IOException e) {
+				Log.warn(logId, "MRET failed", clientRequest, e);
+				transport.close();
+			}
+		}));
+	}
+
+	// file bytes sent
+	private long sendBatchEntry(String name, File file) throws IOException {
+		OutputStream dataOutToClient = dataOut();
+		FileInputStream in;
+
+		try {
+			in = new FileInputStream(file);
+		} catch (FileNotFoundException e) {
+			// gone since the directory was read: the header says so and no bytes follow
+			dataOutToClient.write(("-" + name + " could not be read\0").getBytes(StandardCharsets.ISO_8859_1));
+			dataOutToClient.flush();
+			return 0;
+		}
+
+		try {
+			long size = in.getChannel().size();
+			dataOutToClient.write((" " + size + " " + name + "\0").getBytes(StandardCharsets.ISO_8859_1));
+			dataOutToClient.flush();
+
+			if (sendBinary(in, 0, size) < size) {
+				// truncated underneath us, the client can no longer find the next header
+				throw new IOException(name + " shrank while being sent");
+			}
+			return size;
+		} finally {
+			in.close();
+		}
+	}
+
+	private void sendCommand(Command clientRequest) {
+		File file = pendingFile;
+		long offset = pendingOffset;
+		long end = pendingEnd;
+
+		transport.runTransfer(() -> shaped(end - offset, () -> {
+			try {
+				// the file is all there, so hashing runs alongside the send from the start
+				BlockChecksums checksums = isVerifying()
+						? BlockChecksums.ofExisting(file.toPath(), checksumAlgorithm, offset, end - offset)
+						: null;
+
+				long started = System.nanoTime();
+				sendFile(file, offset, end);
+				metrics.retrieved(end - offset, System.nanoTime() - started);
+				Log.sampled(Log.Level.INFO, logId, "sent", file);
+
+				if (checksums != null) {
+					sendMessageToClient("Checksum " + checksums.finish(end - offset), ResponseCodes.SUCCESS);
+				}
+			} catch (IOException e) {
+				Log.warn(logId, "RETR failed", file, e);
+			}
+		}));
+	}
+
+	// STAT: the server's metrics, one per line
+	private void statCommand(Command clientRequest) {
+		if (!loggedIn) {
+			sendMessageToClient("Not logged in", ResponseCodes.ERROR);
+			return;
+		}
+
+		StringBuilder report = new StringBuilder("Server metrics");
+		for (String line : metrics.report()) {
+			report.append("\r\n").append(line);
+		}
+		sendMessageToClient(report.toString(), ResponseCodes.SUCCESS);
+	}
+
+	// CSUM CRC32C|CRC32|SHA256|OFF
+	private void csumCommand(Command clientRequest) {
+		if (!loggedIn) {
+			sendMessageToClient("Not logged in", ResponseCodes.ERROR);
+			return;
+		}
+
+		String algorithm = clientRequest.argument().toUpperCase();
+		if (algorithm.equals("OFF")) {
+			checksumAlgorithm = null;
+			sendMessageToClient("Checksums off", ResponseCodes.SUCCESS);
+		} else if (BlockChecksums.isSupported(algorithm)) {
+			checksumAlgorithm = algorithm;
+			sendMessageToClient("Checksums on, " + algorithm, ResponseCodes.SUCCESS);
+		} else {
+			sendMessageToClient("Checksum not available", ResponseCodes.ERROR);
+		}
+	}
+
+	// file is about to change, or just has: drop it and its directory's listing from the caches
+	private static void invalidateCached(File file) {
+		if (fileCache != null) {
+			fileCache.invalidate(file);
+		}
+		if (listingCache != null) {
+			listingCache.invalidate(file.getAbsoluteFile().getParentFile());
+		}
+	}
+
+	// ASCII mode rewrites the bytes on the way, so there is nothing to compare it against
+	private boolean isVerifying() {
+		return checksumAlgorithm != null && !transmissionType.equals("A");
+	}
+
+	private static OutputStream reporting(BlockChecksums checksums, OutputStream out) {
+		return checksums == null ? out : checksums.reporting(out);
+	}
+
+	// REST <offset> before SEND: resume the RETR from that byte, reply is what's left
+	private void restCommand(Command clientRequest) {
+		long offset;
+		try {
+			offset = Long.parseLong(clientRequest.argument());
+		} catch (NumberFormatException e) {
+			offset = -1;
+		}
+
+		if (offset < 0 || offset > pendingSize) {
+			sendMessageToClient("Invalid restart offset, RETR aborted", ResponseCodes.ERROR);
+			return;
+		}
+
+		pendingOffset = offset;
+		pendingEnd = pendingSize;
+		sendMessageToClient(Long.toString(pendingSize - offset), ResponseCodes.EMPTY);
+		prompt = Prompt.SEND;
+	}
+
+	// RANG <offset> <count> before SEND: only that slice of the file, for striped downloads
+	private void retrRangeCommand(Command clientRequest) {
+		long[] range = parseRange(clientRequest);
+
+		if (range == null || range[0] + range[1] > pendingSize) {
+			sendMessageToClient("Invalid range, RETR aborted", ResponseCodes.ERROR);
+			return;
+		}
+
+		pendingOffset = range[0];
+		pendingEnd = range[0] + range[1];
+		sendMessageToClient(Long.toString(range[1]), ResponseCodes.EMPTY);
+		prompt = Prompt.SEND;
+	}
+
+	private void stopCommand(Command clientRequest) {
+		sendMessageToClient("ok, RETR aborted", ResponseCodes.ERROR);
+	}
+
+	private void nameCommand(Command clientRequest) {
+		String[] requestBreakdown = clientRequest.words();
+
+		if (requestBreakdown.length > 1) {
+			String argument = clientRequest.argument();
+
+			File file = new File(currentDirectory + "/" + argument);
+
+			if (file.isFile() && !inBlobStore(file)) {
+				sendMessageToClient("File exists", ResponseCodes.SUCCESS);
+			} else {
+				sendMessageToClient("Can't find " + argument, ResponseCodes.ERROR);
+				return;
+			}
+
+			// rename happens once the TOBE arrives
+			pendingFile = file;
+			pendingName = argument;
+			prompt = Prompt.TOBE;
+		} else {
+			sendMessageToClient("Missing argument", ResponseCodes.ERROR);
+		}
+	}
+
+	private void tobeCommand(Command clientRequest) {
+		File file = pendingFile;
+		String argument = pendingName;
+		String newName = clientRequest.argument();
+
+		// TOBE <new name>
+		if (!newName.isEmpty()) {
+			File newFile = new File(currentDirectory + "/" + newName);
+
+			if (inBlobStore(newFile)) {
+				sendMessageToClient("File wasn't renamed because this name is reserved", ResponseCodes.ERROR);
+				return;
+			}
+
+			if (newFile.exists()) {
+				sendMessageToClient(
+						"File wasn't renamed because this name is already taken. Try again with a different name",
+						ResponseCodes.ERROR);
+				return;
+			}
+
+			invalidateCached(file);
+			invalidateCached(newFile);
+			if (file.renameTo(newFile)) {
+				sendMessageToClient(argument + " renamed to " + newName, ResponseCodes.SUCCESS);
+			} else {
+				sendMessageToClient("File wasn't renamed because it was failed to rename. Try Linux",
+						ResponseCodes.ERROR);
+				return;
+			}
+		}
+		else {
+			sendMessageToClient("File wasn't renamed because of an invalid command or a missing argument",
+					ResponseCodes.ERROR);
+			return;
+		}
+	}
+
+	private void killCommand(Command clientRequest) {
+		String argument = clientRequest.argument();
+
+		File file = new File(currentDirectory + "/" + argument);
+
+		if (file.isFile() && !inBlobStore(file)) {
+			invalidateCached(file);
+			if (file.delete()) {
+				sendMessageToClient(file.getName() + " deleted", ResponseCodes.SUCCESS);
+			} else {
+				sendMessageToClient("Not delete because failed to delete / folder delete is not supported",
+						ResponseCodes.ERROR);
+			}
+		} else {
+			sendMessageToClient("Not deleted because not a file", ResponseCodes.ERROR);
+		}
+	}
+
+	private void cdirCommand(Command clientRequest) {
+		// TODO Auto-generated method stub
+		String[] requestBreakdown = clientRequest.words();
+
+		if (requestBreakdown.length == 2) {
+			// Default + /new/directory
+			File filePath = new File(HOME_DIRECTORY + requestBreakdown[1]);
+			if (!filePath.isDirectory() || inBlobStore(filePath)) {
+				sendMessageToClient("Can't connect to directory because: invalid directory", ResponseCodes.ERROR);
+				return;
+			}
+
+			if (!passwordValid || !accountValid) {
+				sendMessageToClient("Directory ok, send account/password", ResponseCodes.SUCCESS);
+
+				// The server will wait for ACCT or PASS, directory changes once logged in
+				pendingFile = filePath;
+				prompt = Prompt.CDIR_AUTH;
+				return;
+			}
+
+			currentDirectory = filePath.getPath();
+			sendMessageToClient("Changed working dir to " + currentDirectory, ResponseCodes.LOGGEDIN);
+
+		} else {
+			sendMessageToClient("Can't connect to directory because: invalid arguments", ResponseCodes.ERROR);
+			return;
+		}
+	}
+
+	// storage/.blobs belongs to the dedup store: no command may name anything in it, LIST leaves it out
+	private static boolean inBlobStore(File path) {
+		for (Path part : path.toPath().normalize()) {
+			if (part.toString().equals(BlobStore.DIRECTORY)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// only ACCT and PASS get dispatched here
+	private boolean authenticateCDIR(Command clientRequest) {
+		String argument = clientRequest.argument();
+
+		switch (clientRequest.verb()) {
+		case ACCT:
+			if (userDetail.hasAccounts()) {
+				boolean foundAccount = userDetail.hasAccount(argument);
+
+				if (foundAccount) {
+					accountValid = true;
+
+					// everything is checked, has no password
+					if (passwordValid || !userDetail.hasPassword()) {
+						logIn();
+						return true;
+					}
+
+					// has password, not yet validated
+					else if (!passwordValid && userDetail.hasPassword()) {
+						sendMessageToClient("account ok, send password", ResponseCodes.SUCCESS);
+					}
+				} else {
+					sendMessageToClient("Invalid account", ResponseCodes.ERROR);
+				}
+			} else {
+				accountValid = true;
+				// has no account, password already valid OR has no account, has no password
+				if (passwordValid || !userDetail.hasPassword()) {
+					logIn();
+					return true;
+				}
+
+				// has no account, but password required
+				else if (!passwordValid && userDetail.hasPassword()) {
+					sendMessageToClient("account ok, send password", ResponseCodes.SUCCESS);
+				}
+			}
+			break;
+		case PASS:
+			if (userDetail.hasPassword()) {
+				// password valid
+				if (userDetail.getPassword().equals(argument)) {
+					passwordValid = true;
+					if (!userDetail.hasAccounts() || accountValid) {
+						logIn();
+						return true;
+					} else {
+						sendMessageToClient("password ok, send account", ResponseCodes.SUCCESS);
+					}
+				} else {
+					sendMessageToClient("invalid password", ResponseCodes.ERROR);
+				}
+			} else {
+				passwordValid = true;
+				// doesn't have an account or already authorised
+				if (!userDetail.hasAccounts() || accountValid) {
+					logIn();
+					return true;
+				} else {
+					sendMessageToClient("password ok, send account", ResponseCodes.SUCCESS);
+				}
+			}
+			break;
+		}
+		return false;
+	}
+
+	private void listCommand(Command clientRequest) {
+		String[] requestBreakdown = clientRequest.words();
+		String mode = "";
+		String listOfFile_out = "";
+
+		// LIST + F or V, current directory!
+		if (requestBreakdown.length == 2 || requestBreakdown.length == 3) {
+			File filePath = new File(currentDirectory);
+
+			if (requestBreakdown.length == 3) {
+				filePath = new File(currentDirectory + "/" + requestBreakdown[2]);
+				if (!filePath.isDirectory() || inBlobStore(filePath)) {
+					sendMessageToClient("Invalid directory", ResponseCodes.ERROR);
+					return;
+				}
+			}
+
+			mode = requestBreakdown[1].toUpperCase();
+
+			if (mode.equals("F") || mode.equals("V")) {
+				String cached = listingCache == null ? null : listingCache.get(filePath, mode);
+
+				if (cached != null) {
+					listOfFile_out = listOfFile_out.concat(String.format("%s\r\n", currentDirectory)).concat(cached);
+					sendMessageToClient(listOfFile_out, ResponseCodes.SUCCESS);
+					return;
+				}
+
+				File directory = filePath;
+				String listMode = mode;
+				String header = currentDirectory;
+				long version = listingCache == null ? -1 : listingCache.version(directory);
+				transport.runTransfer(() -> streamListing(directory, listMode, header, version));
+			} else {
+				sendMessageToClient("Invalid Mode", ResponseCodes.ERROR);
+				return;
+			}
+
+		} else {
+			sendMessageToClient("Invalid arguments", ResponseCodes.ERROR);
+			return;
+		}
+
+	}
+
+	// The reply goes out as it is read: "+<header>\r\n", a line per entry written in LIST_CHUNK
+	// pieces, then the NUL, so memory stays flat however big the directory is. Listings
+	// up to CACHED_LISTING_LIMIT characters are also kept for the next LIST.
+	private void streamListing(File directory, String mode, String header, long version) {
+		StringBuilder cacheable = version < 0 ? null : new StringBuilder();
+		boolean complete = true;
+		boolean verbose = mode.equals("V");
+
+		DirectoryStream<Path> opened;
+		try {
+			opened = Files.newDirectoryStream(directory.toPath());
+		} catch (IOException e) {
+			// nothing has been sent yet, so there is still room for a proper reply
+			Log.warn(logId, "LIST failed", directory, e);
+			sendMessageToClient("Can't list directory because: it could not be read", ResponseCodes.ERROR);
+			return;
+		}
+
+		try (DirectoryStream<Path> entries = opened) {
+			Writer out = new BufferedWriter(
+					new OutputStreamWriter(transport.dataOut(), StandardCharsets.ISO_8859_1), LIST_CHUNK);
+			out.write("+" + header + "\r\n");
+
+			// a small first batch so the client sees something at once, then big ones stat'ed in parallel
+			List<Path> batch = new ArrayList<Path>();
+			int batchSize = FIRST_LIST_BATCH;
+			try {
+				for (Path path : entries) {
+					batch.add(path);
+					if (batch.size() == batchSize) {
+						complete &= writeLines(out, DirectoryLister.lines(batch, verbose), cacheable);
+						out.flush();
+						batch.clear();
+						batchSize = LIST_BATCH;
+					}
+				}
+			} catch (DirectoryIteratorException e) {
+				complete = false;
+			}
+			complete &= writeLines(out, DirectoryLister.lines(batch, verbose), cacheable);
+
+			out.write('\0');
+			out.flush();
+
+			if (cacheable != null && cacheable.length() > CACHED_LISTING_LIMIT) {
+				cacheable = null;
+			}
+		} catch (IOException e) {
+			// part of the reply may be out and the client can't tell where it ends
+			Log.warn(logId, "LIST failed", directory, e);
+			transport.close();
+			return;
+		}
+
+		if (complete && cacheable != null) {
+			listingCache.put(directory, mode, cacheable.toString(), version);
+		}
+	}
+
+	// false if some entry couldn't be read (gone since the directory was read)
+	private static boolean writeLines(Writer out, List<String> lines, StringBuilder cacheable) throws IOException {
+		boolean complete = true;
+
+		for (String line : lines) {
+			if (line == null) {
+				complete = false;
+				continue;
+			}
+			out.write(line);
+			if (cacheable != null && cacheable.length() <= CACHED_LISTING_LIMIT) {
+				cacheable.append(line);
+			}
+		}
+		return complete;
+	}
+
+	private void doneCommand() {
+		sendMessageToClient("Charge/Accounting info", ResponseCodes.SUCCESS);
+		transport.close();
+	}
+
+	private void typeCommand(Command clientRequest) {
+		if (!loggedIn) {
+			sendMessageToClient("Not logged in", ResponseCodes.ERROR);
+			return;
+		}
+
+		String[] requestBreakdown = clientRequest.words();
+		if (hasArgument(requestBreakdown) && requestBreakdown.length == 2) {
+			switch (requestBreakdown[1].toUpperCase()) {
+			case "A":
+				transmissionType = "A";
+				sendMessageToClient("Using Ascii mode", ResponseCodes.SUCCESS);
+				break;
+			case "B":
+				transmissionType = "B";
+				sendMessageToClient("Using Binary mode", ResponseCodes.SUCCESS);
+				break;
+			case "C":
+				transmissionType = "C";
+				sendMessageToClient("Using Continuous mode", ResponseCodes.SUCCESS);
+				break;
+			case "Z":
+				// binary, deflated in chunks on the wire (see CompressedTransfer)
+				transmissionType = "Z";
+				sendMessageToClient("Using Compressed mode", ResponseCodes.SUCCESS);
+				break;
+			default:
+				sendMessageToClient("Type not valid", ResponseCodes.ERROR);
+			}
+		} else {
+			sendMessageToClient("Type not valid", ResponseCodes.ERROR);
+		}
+
+	}
+
+	private boolean hasArgument(String[] message) {
+		if (message.length > 1) {
+			return true;
+		} else {
+			return false;
+		}
+	}
+
+	private void userCommand(Command clientRequest) {
+
+		// breakdown the request using space
+		String[] requestBreakdown = clientRequest.words();
+
+		// i.e. USER<SPACE>cjan957, assumes username has no space
+		if (requestBreakdown.length == 2) {
+			String username = requestBreakdown[1];
+
+			long lookupStarted = System.nanoTime();
+			userDetail = users.lookup(username);
+			metrics.authQuery(System.nanoTime() - lookupStarted);
+
+			// username found in db
+			if (userDetail.getValid() == 1) {
+				usernameValid = true;
+				passwordValid = false;
+				accountValid = false;
+				// has a password
+				if (!userDetail.hasPassword()) {
+					passwordValid = true;
+					if (!userDetail.hasAccounts()) {
+						accountValid = true;
+						sendMessageToClient(username + " logged in", ResponseCodes.LOGGEDIN);
+						logIn();
+					}
+					else
+					{
+						sendMessageToClient("User-id valid, send account and password", ResponseCodes.SUCCESS);
+					}
+				} else {
+					sendMessageToClient("User-id valid, send account and password", ResponseCodes.SUCCESS);
+					loggedIn = false;
+				}
+			} else {
+				usernameValid = false;
+				sendMessageToClient("Invalid user-id, try again", ResponseCodes.ERROR);
+			}
+		}
+		// i.e. USER
+		else {
+			sendMessageToClient("Invalid user-id, try again", ResponseCodes.ERROR);
+		}
+	}
+
+	private void passCommand(Command clientRequest) {
+		// split the PASS command from the actual password
+		String password = clientRequest.argument();
+
+		if (usernameValid) {
+			if (userDetail.hasPassword()) {
+				if (userDetail.getPassword().equals(password)) {
+					passwordValid = true;
+					if (!userDetail.hasAccounts() || accountValid) {
+						accountValid = true;
+						sendMessageToClient("Logged in", ResponseCodes.LOGGEDIN);
+						logIn();
+					} else {
+						sendMessageToClient("Send Account", ResponseCodes.SUCCESS);
+					}
+				} else {
+					sendMessageToClient("Wrong password, try again", ResponseCodes.ERROR);
+				}
+			} else {
+				// force passwordValid to true even though there's no password
+				passwordValid = true;
+				if (!userDetail.hasAccounts() || accountValid) {
+					accountValid = true;
+					sendMessageToClient("Logged in", ResponseCodes.LOGGEDIN);
+					logIn();
+				} else {
+					sendMessageToClient("Send Account", ResponseCodes.SUCCESS);
+				}
+			}
+
+		}
+
+	}
+
+	private void acctCommand(Command clientRequest) {
+		// ACCT accountName
+		String[] requestBreakdown = clientRequest.words();
+		if (requestBreakdown.length != 2) {
+			sendMessageToClient("Invalid account, expected ACCT account", ResponseCodes.ERROR);
+			return;
+		}
+		String accountName = requestBreakdown[1];
+
+		if (usernameValid) {
+			// ACCT <cjan957>
+			if (requestBreakdown.length == 2) {
+				// user from db has an account
+				if (userDetail.hasAccounts()) {
+					boolean foundAccount = userDetail.hasAccount(accountName);
+
+					// account specified by client matches db
+					if (foundAccount) {
+						accountValid = true;
+						if (passwordValid) {
+							sendMessageToClient("Account valid, logged-in", ResponseCodes.LOGGEDIN);
+							logIn();
+						} else if (!passwordValid && userDetail.hasPassword()) {
+							sendMessageToClient("Account valid, send password", ResponseCodes.SUCCESS);
+						} else if (!userDetail.hasPassword()) {
+							sendMessageToClient("Account valid, logged-in", ResponseCodes.LOGGEDIN);
+							logIn();
+						}
+					} else {
+						sendMessageToClient("Invalid account, try again", ResponseCodes.ERROR);
+					}
+				}
+				// if user has no account in remote / db
+				else {
+					// force accountValid to true, even if they have no account
+					accountValid = true;
+					if (passwordValid) {
+						sendMessageToClient("Account valid, logged-in", ResponseCodes.LOGGEDIN);
+						logIn();
+					} else if (!passwordValid && userDetail.hasPassword()) {
+						sendMessageToClient("Account valid, send password", ResponseCodes.SUCCESS);
+					} else if (!userDetail.hasPassword()) {
+						sendMessageToClient("Account valid, logged-in", ResponseCodes.LOGGEDIN);
+						logIn();
+
+					}
+				}
+			}
+		}
+	}
+
+	private void logIn() {
+		loggedIn = true;
+	}
+
+	private boolean isLoggedIn() {
+		return loggedIn;
+	}
+
+	private void sendMessageToClient(String message, ResponseCodes status) {
+		String statusSymbol = "";
+		switch (status) {
+		case SUCCESS:
+			statusSymbol = "+";
+			break;
+		case ERROR:
+			statusSymbol = "-";
+			break;
+		case LOGGEDIN:
+			statusSymbol = "!";
+			break;
+		case EMPTY:
+			statusSymbol = " ";
+			break;
+		}
+		statusSymbol = statusSymbol.concat(message).concat(Character.toString('\0'));
+		byte[] reply = statusSymbol.getBytes(StandardCharsets.ISO_8859_1);
+		metrics.sent(reply.length);
+		transport.writeMessage(reply);
+	}
+
+	private boolean validateClientRequest(Command request, Handler handler) {
+		// PASS arguments stay out of the log
+		Object logged = request.verb() == Command.Verb.PASS ? request.verb() : request;
+
+		// 4 ASCII command of any case, looked up once by Command.parse
+		if (handler != null) {
+			Log.sampled(Log.Level.INFO, logId, "command", logged);
+			return true;
+		}
+		Log.sampled(Log.Level.INFO, logId, "invalid command", logged);
+		return false;
+	}
+
+}
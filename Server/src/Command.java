@@ -0,0 +1,120 @@
+/**
+ * One control message, parsed once. The verb is found from its four letters
+ * (any case) with a single table probe, and the arguments stay as slices of
+ * the original text so handlers don't split the message again.
+ **/
+final class Command {
+
+	enum Verb {
+		USER, ACCT, PASS, TYPE, LIST, CDIR, KILL, NAME, DONE, RETR, STOR, TOBE, SEND, STOP, SIZE, REST, RANG, MRET, CSUM, STAT, UNKNOWN
+	}
+
+	// open addressing over the four ASCII letters packed into an int
+	private static final int TABLE_SIZE = 64;
+	private static final int[] KEYS = new int[TABLE_SIZE];
+	private static final Verb[] VERBS = new Verb[TABLE_SIZE];
+
+	static {
+		for (Verb verb : Verb.values()) {
+			if (verb == Verb.UNKNOWN) {
+				continue;
+			}
+			int key = pack(verb.name().toLowerCase());
+			int slot = slot(key);
+			while (VERBS[slot] != null) {
+				slot = (slot + 1) & (TABLE_SIZE - 1);
+			}
+			KEYS[slot] = key;
+			VERBS[slot] = verb;
+		}
+	}
+
+	private final String text;
+	private final Verb verb;
+	private String[] words;
+
+	private Command(String text, Verb verb) {
+		this.text = text;
+		this.verb = verb;
+	}
+
+	static Command parse(String text) {
+		return new Command(text, lookup(text));
+	}
+
+	static Verb lookup(String text) {
+		// a verb is exactly four characters, then the end or a space
+		if (text.length() < 4 || (text.length() > 4 && text.charAt(4) != ' ')) {
+			return Verb.UNKNOWN;
+		}
+
+		int key = pack(text);
+		if (key == -1) {
+			return Verb.UNKNOWN;
+		}
+
+		int slot = slot(key);
+		while (VERBS[slot] != null) {
+			if (KEYS[slot] == key) {
+				return VERBS[slot];
+			}
+			slot = (slot + 1) & (TABLE_SIZE - 1);
+		}
+		return Verb.UNKNOWN;
+	}
+
+	// first four characters folded to lower case, -1 if any of them isn't ASCII
+	private static int pack(String text) {
+		int key = 0;
+		for (int i = 0; i < 4; i++) {
+			char c = text.charAt(i);
+			if (c > 0x7f) {
+				return -1;
+			}
+			key = (key << 8) | (c | 0x20);
+		}
+		return key;
+	}
+
+	private static int slot(int key) {
+		return (key * 0x9E3779B9) >>> 26;
+	}
+
+	Verb verb() {
+		return verb;
+	}
+
+	String text() {
+		return text;
+	}
+
+	// everything after the verb and its space, e.g. "new File.jpg" for "TOBE new File.jpg"
+	String argument() {
+		return rest(1);
+	}
+
+	// everything after the first n words, e.g. rest(2) of "STOR NEW my file.jpg" is "my file.jpg"
+	String rest(int n) {
+		int index = -1;
+		for (int i = 0; i < n; i++) {
+			index = text.indexOf(' ', index + 1);
+			if (index < 0) {
+				return "";
+			}
+		}
+		return text.substring(index + 1);
+	}
+
+	// the message split on spaces like String.split(" "), worked out on first use
+	String[] words() {
+		if (words == null) {
+			words = text.split(" ");
+		}
+		return words;
+	}
+
+	@Override
+	public String toString() {
+		return text;
+	}
+}
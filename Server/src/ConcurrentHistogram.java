@@ -0,0 +1,86 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latencies in microseconds that any thread can record into. Buckets are
+ * log-linear, exact below 16 and otherwise at most 1/8 of their value wide,
+ * and are kept in a few stripes picked by thread, so sessions recording at the
+ * same time rarely touch the same counter. Reads add the stripes up.
+ **/
+final class ConcurrentHistogram {
+	private static final int SUB_BITS = 4;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int HALF = SUB_COUNT / 2;
+	private static final int BUCKETS = SUB_COUNT + (63 - (SUB_BITS - 1)) * HALF;
+
+	private static final int STRIPES = Integer
+			.highestOneBit(Math.min(16, Runtime.getRuntime().availableProcessors()) * 2 - 1);
+
+	private final AtomicLongArray buckets = new AtomicLongArray(STRIPES * BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	void record(long micros) {
+		long value = Math.max(0, micros);
+		int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+		buckets.incrementAndGet(stripe * BUCKETS + index(value));
+		count.increment();
+		sum.add(value);
+		max.accumulate(value);
+	}
+
+	long count() {
+		return count.sum();
+	}
+
+	long sum() {
+		return sum.sum();
+	}
+
+	long max() {
+		return max.get();
+	}
+
+	// upper edge of the bucket holding the value at fraction; recording may go on meanwhile
+	long percentile(double fraction) {
+		long[] merged = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < buckets.length(); i++) {
+			long n = buckets.get(i);
+			merged[i % BUCKETS] += n;
+			total += n;
+		}
+		if (total == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(fraction * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += merged[i];
+			if (seen >= rank) {
+				return Math.min(highestIn(i), max());
+			}
+		}
+		return max();
+	}
+
+	private static int index(long value) {
+		if (value < SUB_COUNT) {
+			return (int) value;
+		}
+		int shift = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BITS - 1);
+		return SUB_COUNT + (shift - 1) * HALF + (int) ((value >>> shift) - HALF);
+	}
+
+	private static long highestIn(int index) {
+		if (index < SUB_COUNT) {
+			return index;
+		}
+		int shift = (index - SUB_COUNT) / HALF + 1;
+		long sub = (index - SUB_COUNT) % HALF + HALF;
+		return ((sub + 1) << shift) - 1;
+	}
+}
@@ -1,83 +1,186 @@
 import java.sql.*;
-import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * The user database. Keeps a small pool of open SQLite connections, each with
+ * its user lookup already prepared, and answers a lookup with one joined
+ * query instead of a userlist query followed by an accountList query.
+ **/
 public class Database {
-	
-	private Connection conn = null;
-	
-	public void connect()
-	{
-		try {
-			String url = "jdbc:sqlite:peopleDB.db";
-			conn = DriverManager.getConnection(url);
-			System.out.println("established");
+
+	static final String FILE = "peopleDB.db";
+
+	private static final String URL = "jdbc:sqlite:" + FILE;
+
+	private static final String USER_QUERY = "SELECT userlist.*, accountList.account"
+			+ " FROM userlist LEFT JOIN accountList ON accountList.username = userlist.username"
+			+ " WHERE userlist.username = ?";
+
+	private final BlockingQueue<Pooled> idle;
+	private final AtomicInteger opened = new AtomicInteger();
+	private final int size;
+
+	private static final class Pooled {
+		final Connection conn;
+		final PreparedStatement userQuery;
+
+		Pooled(Connection conn) throws SQLException {
+			this.conn = conn;
+			this.userQuery = conn.prepareStatement(USER_QUERY);
 		}
-		catch(Exception e){
-			System.out.println("connection failed " + e);
+
+		void close() {
+			try {
+				conn.close();
+			} catch (SQLException e) {
+				// already unusable
+			}
 		}
-			
 	}
-	
-	
-	public String[] searchForAccount(String username)
+
+	public Database(int size) {
+		this.size = Math.max(1, size);
+		this.idle = new ArrayBlockingQueue<Pooled>(this.size);
+	}
+
+	// null when the database could not be read
+	public Users searchForUser(String username)
 	{
-		String sql = "SELECT account FROM accountList WHERE username = ?";
-		ArrayList<String> accountList = new ArrayList<String>();
-		int size;
+		Users user = new Users();
+		Pooled pooled = null;
 		try {
-			PreparedStatement pstmt = conn.prepareStatement(sql);
-			
-			pstmt.setString(1, username);
-			
-			ResultSet rs = pstmt.executeQuery();
-			
-			while(rs.next())
-			{
-				accountList.add(rs.getString("account"));
+			pooled = borrow();
+			pooled.userQuery.setString(1, username);
+
+			Set<String> accounts = null;
+			try (ResultSet rs = pooled.userQuery.executeQuery()) {
+				while (rs.next()) {
+					//first row carries the user, every row one of its accounts
+					if (user.getValid() == 0) {
+						user.setValid();
+						user.setUsername(username);
+						user.setPassword(rs.getString("password"));
+						user.setRateLimit(rateLimit(rs));
+						if ("1".equals(rs.getString("hasAccount"))) {
+							accounts = new HashSet<String>();
+						}
+					}
+					String account = rs.getString("account");
+					if (accounts != null && account != null) {
+						accounts.add(account);
+					}
+				}
 			}
-			
-		}catch(SQLException e) {
-			System.out.println("Died trying to access account list " + e);
+			user.setAccounts(accounts);
+			release(pooled);
+		} catch (SQLException e) {
+			Log.warn(Log.NO_SESSION, "user lookup failed for", username, e);
+			if (pooled != null) {
+				discard(pooled);
+			}
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
 		}
-		
-		return accountList.toArray(new String[0]);
-		
+
+		return user;
 	}
-	
-	public Users searchForUser(String username)
+
+	// every user with its accounts, read from both tables in one go
+	public Map<String, Users> loadAll() throws SQLException, InterruptedException
 	{
-		Users user = new Users();
-		String sql = "SELECT username, password, hasAccount FROM userlist WHERE username = ?";
-		
-		try{
-			
-			PreparedStatement pstmt = conn.prepareStatement(sql);
-			
-			pstmt.setString(1, username);
-			
-			ResultSet rs = pstmt.executeQuery();
-			
-			while(rs.next())
-			{
-				//if an entry exist with this user name...
-				user.setValid();
-				user.setUsername(username);
-				user.setPassword(rs.getString("password"));
-				if(rs.getString("hasAccount").equals("1"))
-				{
-					String[] userList = searchForAccount(username);
-					user.setAccounts(userList);
+		Map<String, Users> users = new HashMap<String, Users>();
+		Pooled pooled = borrow();
+		try (Statement stmt = pooled.conn.createStatement()) {
+			try (ResultSet rs = stmt.executeQuery("SELECT * FROM userlist")) {
+				while (rs.next()) {
+					Users user = new Users();
+					user.setValid();
+					user.setUsername(rs.getString("username"));
+					user.setPassword(rs.getString("password"));
+					user.setRateLimit(rateLimit(rs));
+					if ("1".equals(rs.getString("hasAccount"))) {
+						user.setAccounts(new HashSet<String>());
+					}
+					users.put(user.getUsername(), user);
+				}
+			}
+			try (ResultSet rs = stmt.executeQuery("SELECT username, account FROM accountList")) {
+				while (rs.next()) {
+					Users user = users.get(rs.getString("username"));
+					String account = rs.getString("account");
+					if (user != null && user.hasAccounts() && account != null) {
+						user.getAccounts().add(account);
+					}
 				}
-				return user;
 			}
-		
-		}catch(SQLException e)
-		{
-			System.out.println("sdkfjsdkl");
+		} catch (SQLException e) {
+			discard(pooled);
+			throw e;
 		}
-		
-		return user;
-		
+		release(pooled);
+		for (Users user : users.values()) {
+			if (user.hasAccounts()) {
+				user.setAccounts(Collections.unmodifiableSet(user.getAccounts()));
+			}
+		}
+		return Collections.unmodifiableMap(users);
+	}
+
+	// userlist.rateLimit in bytes per second, if the table has that column; 0 otherwise
+	private static long rateLimit(ResultSet rs) throws SQLException {
+		ResultSetMetaData columns = rs.getMetaData();
+		for (int i = 1; i <= columns.getColumnCount(); i++) {
+			if (columns.getColumnLabel(i).equalsIgnoreCase("rateLimit")) {
+				return rs.getLong(i);
+			}
+		}
+		return 0;
+	}
+
+	// an idle connection, a new one while the pool is below size, else wait
+	private Pooled borrow() throws SQLException, InterruptedException {
+		for (;;) {
+			Pooled pooled = idle.poll();
+			if (pooled != null) {
+				return pooled;
+			}
+			if (opened.incrementAndGet() <= size) {
+				try {
+					Pooled fresh = new Pooled(DriverManager.getConnection(URL));
+					Log.debug(Log.NO_SESSION, "database connection opened", null);
+					return fresh;
+				} catch (SQLException e) {
+					opened.decrementAndGet();
+					throw e;
+				}
+			}
+			opened.decrementAndGet();
+			// short waits, so a slot freed by discard is noticed too
+			pooled = idle.poll(100, TimeUnit.MILLISECONDS);
+			if (pooled != null) {
+				return pooled;
+			}
+		}
+	}
+
+	private void release(Pooled pooled) {
+		idle.offer(pooled);
+	}
+
+	// a connection that failed is closed and its slot freed for a new one
+	private void discard(Pooled pooled) {
+		pooled.close();
+		opened.decrementAndGet();
 	}
 
 }
@@ -0,0 +1,74 @@
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+/**
+ * Runs a callback on its own thread whenever the database file is written, once
+ * a burst of writes has settled. Changes made between watch() and start() are
+ * still reported, so a caller can read the file in between without missing one.
+ **/
+final class DatabaseWatcher implements Runnable {
+
+	// let a burst of writes to the file settle before reading it
+	private static final long SETTLE_MILLIS = 200;
+
+	private final WatchService watcher;
+	private Runnable onChange;
+
+	private DatabaseWatcher(WatchService watcher) {
+		this.watcher = watcher;
+	}
+
+	static DatabaseWatcher watch() throws IOException {
+		Path file = FileSystems.getDefault().getPath(Database.FILE).toAbsolutePath();
+		WatchService watcher = file.getFileSystem().newWatchService();
+		file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY);
+		return new DatabaseWatcher(watcher);
+	}
+
+	void start(String name, Runnable onChange) {
+		this.onChange = onChange;
+		Thread thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				WatchKey key = watcher.take();
+				boolean changed = false;
+				for (WatchEvent<?> event : key.pollEvents()) {
+					changed |= event.kind() == StandardWatchEventKinds.OVERFLOW
+							|| event.context().toString().startsWith(Database.FILE);
+				}
+				if (!key.reset()) {
+					return;
+				}
+				if (changed) {
+					Thread.sleep(SETTLE_MILLIS);
+					drain();
+					onChange.run();
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// shutting down
+		}
+	}
+
+	// events that came in while settling are covered by the callback about to run
+	private void drain() {
+		WatchKey key;
+		while ((key = watcher.poll()) != null) {
+			key.pollEvents();
+			key.reset();
+		}
+	}
+}
@@ -0,0 +1,130 @@
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileOwnerAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.UserPrincipal;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+/**
+ * Builds LIST lines. A verbose line costs one attribute read per entry: "unix:" where
+ * the platform has it, which is a single stat that leaves the owner as a uid, looked
+ * up by name once per uid; otherwise "posix:*", and on anything else basic plus owner
+ * as before. Big directories are handed over in batches that are stat'ed in parallel
+ * and come back in the order they went in.
+ **/
+final class DirectoryLister {
+
+	// batches at least this big are worth splitting across threads
+	static final int PARALLEL_THRESHOLD = 1024;
+
+	// same output as the SimpleDateFormat LIST V always used, but one shared thread-safe instance
+	private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter
+			.ofPattern("yyyy.MM.dd G 'at' HH:mm:ss z", Locale.getDefault()).withZone(ZoneId.systemDefault());
+
+	private static final String UNIX_ATTRIBUTES = "unix:uid,size,lastModifiedTime,isRegularFile";
+
+	private static final boolean UNIX = FileSystems.getDefault().supportedFileAttributeViews().contains("unix");
+	private static final boolean POSIX = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+
+	private static final ForkJoinPool STATTERS = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+	// uid -> owner name, there are only ever a handful
+	private static final Map<Integer, String> OWNERS = new ConcurrentHashMap<Integer, String>();
+
+	private DirectoryLister() {
+	}
+
+	// lines for paths in the same order, null where an entry couldn't be read
+	static List<String> lines(List<Path> paths, boolean verbose) {
+		if (paths.size() < PARALLEL_THRESHOLD) {
+			List<String> lines = new ArrayList<String>(paths.size());
+			for (Path path : paths) {
+				lines.add(line(path, verbose));
+			}
+			return lines;
+		}
+
+		try {
+			// an ordered stream, so collect keeps the order whatever thread stat'ed what
+			return STATTERS.submit(() -> paths.parallelStream().map(path -> line(path, verbose))
+					.collect(Collectors.toList())).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	// one LIST line, "" for entries that are never listed, null if it couldn't be read
+	static String line(Path path, boolean verbose) {
+		String fileName = path.getFileName().toString();
+
+		if (fileName.equals(BlobStore.DIRECTORY)) {
+			return "";
+		}
+
+		try {
+			if (!verbose) {
+				BasicFileAttributes basic_attr = Files.readAttributes(path, BasicFileAttributes.class);
+				return basic_attr.isRegularFile() ? fileName + "\r\n" : fileName + "/\r\n";
+			}
+
+			boolean isFile;
+			long size;
+			FileTime lastModified;
+			String owner;
+
+			if (UNIX) {
+				Map<String, Object> attributes = Files.readAttributes(path, UNIX_ATTRIBUTES);
+				isFile = (Boolean) attributes.get("isRegularFile");
+				size = (Long) attributes.get("size");
+				lastModified = (FileTime) attributes.get("lastModifiedTime");
+				owner = isFile ? ownerName((Integer) attributes.get("uid"), path) : null;
+			} else if (POSIX) {
+				Map<String, Object> attributes = Files.readAttributes(path, "posix:*");
+				isFile = (Boolean) attributes.get("isRegularFile");
+				size = (Long) attributes.get("size");
+				lastModified = (FileTime) attributes.get("lastModifiedTime");
+				owner = ((UserPrincipal) attributes.get("owner")).getName();
+			} else {
+				BasicFileAttributes basic_attr = Files.readAttributes(path, BasicFileAttributes.class);
+				isFile = basic_attr.isRegularFile();
+				size = basic_attr.size();
+				lastModified = basic_attr.lastModifiedTime();
+				owner = isFile
+						? Files.getFileAttributeView(path, FileOwnerAttributeView.class).getOwner().getName()
+						: null;
+			}
+
+			if (!isFile) {
+				// if folder
+				return fileName + "/\r\n";
+			}
+			return DATE_FORMAT.format(lastModified.toInstant()) + " " + owner + " " + size + " " + fileName + "\r\n";
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private static String ownerName(int uid, Path path) throws IOException {
+		String name = OWNERS.get(uid);
+		if (name == null) {
+			name = Files.getOwner(path).getName();
+			OWNERS.put(uid, name);
+		}
+		return name;
+	}
+}
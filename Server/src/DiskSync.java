@@ -0,0 +1,137 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * When an upload has to be on disk before the client is told it was saved.
+ *
+ * NONE leaves it to the OS, as before. CLOSE forces each file itself. GROUP
+ * hands the files to one committer, which forces everything that queued up
+ * while it was busy with the previous batch (or within the window) in a single
+ * pass, so concurrent uploads share the wait rather than queueing one fsync
+ * behind another.
+ **/
+final class DiskSync {
+	enum Policy {
+		NONE, CLOSE, GROUP
+	}
+
+	private final Policy policy;
+	private final long windowMillis;
+
+	// files waiting for the next batch, guarded by this
+	private List<Request> pending = new ArrayList<Request>();
+	private boolean committing;
+
+	DiskSync(Policy policy, long windowMillis) {
+		this.policy = policy;
+		this.windowMillis = windowMillis;
+	}
+
+	static Policy policy(String name) {
+		try {
+			return Policy.valueOf(name.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			Log.warn(Log.NO_SESSION, "unknown fsync policy", name, null);
+			return Policy.NONE;
+		}
+	}
+
+	// returns once the file's contents are durable, as far as the policy asks for
+	void sync(FileChannel file) throws IOException {
+		switch (policy) {
+		case CLOSE:
+			file.force(false);
+			break;
+		case GROUP:
+			commit(file);
+			break;
+		default:
+			break;
+		}
+	}
+
+	void sync(Path path) throws IOException {
+		if (policy == Policy.NONE) {
+			return;
+		}
+		try (FileChannel file = FileChannel.open(path, StandardOpenOption.WRITE)) {
+			sync(file);
+		}
+	}
+
+	// whoever finds no batch in progress commits the batch, the rest wait for it
+	private void commit(FileChannel file) throws IOException {
+		Request request = new Request(file);
+		List<Request> batch;
+
+		synchronized (this) {
+			pending.add(request);
+			boolean interrupted = false;
+			while (committing && !request.done) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			if (request.done) {
+				request.result();
+				return;
+			}
+			committing = true;
+		}
+
+		if (windowMillis > 0) {
+			try {
+				Thread.sleep(windowMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		synchronized (this) {
+			batch = pending;
+			pending = new ArrayList<Request>();
+		}
+
+		for (Request each : batch) {
+			try {
+				each.file.force(false);
+			} catch (IOException e) {
+				each.failure = e;
+			}
+		}
+
+		synchronized (this) {
+			for (Request each : batch) {
+				each.done = true;
+			}
+			committing = false;
+			notifyAll();
+		}
+		request.result();
+	}
+
+	private static final class Request {
+		final FileChannel file;
+		boolean done;
+		IOException failure;
+
+		Request(FileChannel file) {
+			this.file = file;
+		}
+
+		void result() throws IOException {
+			if (failure != null) {
+				throw failure;
+			}
+		}
+	}
+}
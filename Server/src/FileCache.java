@@ -0,0 +1,152 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Off-heap copies of the files RETR'd most, for -Dsftp.cacheBytes=<budget>. A file
+ * is copied in on its cacheAdmitHits'th RETR (so one-off downloads don't push hot
+ * files out), the least recently used ones are dropped once the budget is exceeded,
+ * and STOR, KILL and NAME invalidate the path they touch. Entries also remember the
+ * size and modification time they were read at and are dropped if the file changes
+ * behind the server's back.
+ *
+ * Copies rather than mappings: a mapped file that a STOR truncates mid-RETR faults
+ * the sending thread, a copy just goes on serving the old bytes for that transfer.
+ **/
+final class FileCache {
+
+	// hit counts kept for files not (yet) cached, forgotten in bulk past this many
+	private static final int MAX_TRACKED = 4096;
+
+	private final long budget;
+	private final int admitHits;
+	private final long maxEntry;
+
+	// guarded by this. Access ordered, so iteration starts at the least recently used
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private final Map<String, Integer> hits = new HashMap<String, Integer>();
+	private long used;
+
+	private static final class Entry {
+		final ByteBuffer bytes;
+		final long length;
+		final long lastModified;
+
+		Entry(ByteBuffer bytes, long length, long lastModified) {
+			this.bytes = bytes;
+			this.length = length;
+			this.lastModified = lastModified;
+		}
+	}
+
+	FileCache(long budget, int admitHits) {
+		this.budget = budget;
+		this.admitHits = Math.max(1, admitHits);
+		// one file may not take more than a quarter of the cache
+		this.maxEntry = Math.min(budget / 4, Integer.MAX_VALUE);
+	}
+
+	// the whole file as a read-only buffer of its own, or null to read it from disk
+	ByteBuffer get(File file) {
+		String key = keyOf(file);
+		long length = file.length();
+		long lastModified = file.lastModified();
+
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry != null) {
+				if (entry.length == length && entry.lastModified == lastModified) {
+					return entry.bytes.duplicate();
+				}
+				remove(key);
+			}
+
+			if (length == 0 || length > maxEntry || !admit(key)) {
+				return null;
+			}
+		}
+
+		// read outside the lock, another RETR of the same file may do the same and lose the race
+		Entry entry = load(file, length, lastModified);
+		if (entry == null) {
+			return null;
+		}
+
+		synchronized (this) {
+			if (!entries.containsKey(key)) {
+				entries.put(key, entry);
+				used += entry.length;
+				evict();
+			}
+		}
+		return entry.bytes.duplicate();
+	}
+
+	// the file at this path is being written, renamed or deleted
+	synchronized void invalidate(File file) {
+		String key = keyOf(file);
+		remove(key);
+		hits.remove(key);
+	}
+
+	private boolean admit(String key) {
+		Integer count = hits.get(key);
+		int seen = count == null ? 1 : count + 1;
+
+		if (seen >= admitHits) {
+			hits.remove(key);
+			return true;
+		}
+		if (hits.size() >= MAX_TRACKED) {
+			hits.clear();
+		}
+		hits.put(key, seen);
+		return false;
+	}
+
+	private void remove(String key) {
+		Entry entry = entries.remove(key);
+		if (entry != null) {
+			used -= entry.length;
+		}
+	}
+
+	private void evict() {
+		Iterator<Entry> lru = entries.values().iterator();
+		while (used > budget && lru.hasNext()) {
+			used -= lru.next().length;
+			lru.remove();
+		}
+	}
+
+	private static Entry load(File file, long length, long lastModified) {
+		ByteBuffer bytes = ByteBuffer.allocateDirect((int) length);
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			while (bytes.hasRemaining()) {
+				if (channel.read(bytes, bytes.position()) < 0) {
+					return null;
+				}
+			}
+		} catch (IOException e) {
+			return null;
+		}
+
+		// changed while it was being read, leave it to the next RETR
+		if (file.length() != length || file.lastModified() != lastModified) {
+			return null;
+		}
+		bytes.flip();
+		return new Entry(bytes.asReadOnlyBuffer(), length, lastModified);
+	}
+
+	private static String keyOf(File file) {
+		return file.getAbsoluteFile().toPath().normalize().toString();
+	}
+}
@@ -0,0 +1,136 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Byte pumps shared by RETR and STOR.
+ **/
+final class FileTransfer {
+
+	static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final long PROGRESS_SLICE = 1024 * 1024;
+
+	private FileTransfer() {
+	}
+
+	// Zero-copy file -> socket (sendfile on Linux). Sends exactly count bytes from
+	// position, or fewer if the file is truncated underneath us.
+	static long sendRange(FileChannel file, long position, long count, WritableByteChannel socket)
+			throws IOException {
+		if (socket instanceof TransferScheduler.ShapedChannel) {
+			return sendShaped(file, position, count, (TransferScheduler.ShapedChannel) socket);
+		}
+		long sent = 0;
+
+		while (sent < count) {
+			long n = file.transferTo(position + sent, count - sent, socket);
+			if (n <= 0 && position + sent >= file.size()) {
+				break;
+			}
+			sent += n;
+		}
+		return sent;
+	}
+
+	// still zero-copy, paying for a quantum before each transferTo
+	private static long sendShaped(FileChannel file, long position, long count,
+			TransferScheduler.ShapedChannel socket) throws IOException {
+		long sent = 0;
+
+		while (sent < count) {
+			int quantum = (int) Math.min(TransferScheduler.QUANTUM, count - sent);
+			socket.acquire(quantum);
+			long n = file.transferTo(position + sent, quantum, socket.target());
+			if (n <= 0 && position + sent >= file.size()) {
+				break;
+			}
+			sent += n;
+		}
+		return sent;
+	}
+
+	// [position, position + count) of an in-memory copy of a file -> socket
+	static long sendBuffer(ByteBuffer file, long position, long count, WritableByteChannel socket)
+			throws IOException {
+		ByteBuffer slice = file.duplicate();
+		slice.limit((int) (position + count));
+		slice.position((int) position);
+
+		long sent = 0;
+		while (slice.hasRemaining()) {
+			sent += socket.write(slice);
+		}
+		return sent;
+	}
+
+	// socket -> file, bounded to exactly count bytes so the next control message
+	// stays on the connection. Returns less than count only if the client went away.
+	static long receiveRange(ReadableByteChannel socket, FileChannel file, long position, long count)
+			throws IOException {
+		return receiveRange(socket, file, position, count, null);
+	}
+
+	// same, telling checksums (if any) how far the file has been written as it goes
+	static long receiveRange(ReadableByteChannel socket, FileChannel file, long position, long count,
+			BlockChecksums checksums) throws IOException {
+		long received = 0;
+		// transferFrom only returns once it has it all, so hand it slices for the hasher to follow
+		long slice = checksums == null ? Long.MAX_VALUE : PROGRESS_SLICE;
+
+		while (received < count) {
+			long n;
+			if (position + received > file.size()) {
+				// transferFrom will not write past the end of the file, so a stripe that lands
+				// beyond it has to extend the file with an ordinary write first
+				n = writeAt(socket, file, position + received, count - received);
+			} else {
+				n = file.transferFrom(socket, position + received, Math.min(slice, count - received));
+			}
+			if (n <= 0) {
+				// a blocking source only comes back empty at end of stream
+				break;
+			}
+			received += n;
+			if (checksums != null) {
+				checksums.advance(position + received);
+			}
+		}
+		return received;
+	}
+
+	private static long writeAt(ReadableByteChannel socket, FileChannel file, long position, long count)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, count));
+		if (socket.read(buffer) < 0) {
+			return -1;
+		}
+		buffer.flip();
+		int n = buffer.remaining();
+		while (buffer.hasRemaining()) {
+			file.write(buffer, position + n - buffer.remaining());
+		}
+		return n;
+	}
+
+	// Bulk copy for when there is no channel to hand the bytes to
+	static long copy(InputStream in, OutputStream out, long count) throws IOException {
+		byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, Math.max(count, 1))];
+		long copied = 0;
+
+		while (copied < count) {
+			int n = in.read(buffer, 0, (int) Math.min(buffer.length, count - copied));
+			if (n < 0) {
+				break;
+			}
+			out.write(buffer, 0, n);
+			copied += n;
+		}
+		out.flush();
+		return copied;
+	}
+}
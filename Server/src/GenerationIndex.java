@@ -0,0 +1,70 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Highest "name(n).ext" generation per name in each directory, for STOR NEW. A
+ * directory is read once, the first time a generation is needed in it; after that
+ * the next number comes from a counter, and is claimed by creating the (empty) file
+ * so two uploads of the same name, or a file made behind the server's back, can
+ * never end up with the same generation.
+ **/
+final class GenerationIndex {
+
+	// name(n).ext, the generation being the last (n) before the extension
+	private static final Pattern GENERATION = Pattern.compile("(.*)\\((\\d+)\\)\\.([^.]*)");
+
+	// directory -> "name/ext" -> highest generation handed out or seen
+	private final ConcurrentHashMap<String, ConcurrentHashMap<String, AtomicInteger>> directories = new ConcurrentHashMap<String, ConcurrentHashMap<String, AtomicInteger>>();
+
+	// creates the next free generation of name.extension in directory and returns its file name
+	String allocate(File directory, String name, String extension) throws IOException {
+		ConcurrentHashMap<String, AtomicInteger> highest = directories
+				.computeIfAbsent(directory.getAbsoluteFile().toPath().normalize().toString(), key -> scan(directory));
+		AtomicInteger generation = highest.computeIfAbsent(name + "/" + extension, key -> new AtomicInteger());
+
+		while (true) {
+			String fileName = name + "(" + generation.incrementAndGet() + ")." + extension;
+			try {
+				Files.createFile(new File(directory, fileName).toPath());
+				return fileName;
+			} catch (FileAlreadyExistsException e) {
+				// created outside the server since the directory was read, take the next one
+			}
+		}
+	}
+
+	private static ConcurrentHashMap<String, AtomicInteger> scan(File directory) {
+		ConcurrentHashMap<String, AtomicInteger> highest = new ConcurrentHashMap<String, AtomicInteger>();
+
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory.toPath())) {
+			for (Path entry : entries) {
+				Matcher m = GENERATION.matcher(entry.getFileName().toString());
+				if (!m.matches()) {
+					continue;
+				}
+				try {
+					int generation = Integer.parseInt(m.group(2));
+					AtomicInteger seen = highest.computeIfAbsent(m.group(1) + "/" + m.group(3),
+							key -> new AtomicInteger());
+					if (generation > seen.get()) {
+						seen.set(generation);
+					}
+				} catch (NumberFormatException e) {
+					// too many digits to be one of ours
+				}
+			}
+		} catch (IOException | DirectoryIteratorException e) {
+			// nothing known, allocate skips whatever turns out to exist
+		}
+		return highest;
+	}
+}
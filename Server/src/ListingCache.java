@@ -0,0 +1,147 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Last LIST output per directory and mode, so a repeated LIST doesn't stat every
+ * entry again. Each cached directory is watched with a WatchService, which drops its
+ * listings when anything in it changes; STOR, KILL and NAME drop them straight away
+ * as well, since the watcher only hears about it a moment later.
+ **/
+final class ListingCache implements Runnable {
+
+	// inotify watches are a limited resource, directories past this are just not cached
+	private static final int MAX_DIRECTORIES = 1024;
+
+	private final WatchService watcher;
+
+	// guarded by this
+	private final Map<String, Directory> directories = new HashMap<String, Directory>();
+	private final Map<WatchKey, Directory> byKey = new HashMap<WatchKey, Directory>();
+
+	private static final class Directory {
+		final String key;
+		final WatchKey watchKey;
+		final Map<String, String> listings = new HashMap<String, String>();
+		// bumped on every change, a listing built across a change is not kept
+		long version;
+
+		Directory(String key, WatchKey watchKey) {
+			this.key = key;
+			this.watchKey = watchKey;
+		}
+	}
+
+	private ListingCache(WatchService watcher) {
+		this.watcher = watcher;
+	}
+
+	// null if this file system can't watch directories
+	static ListingCache start() {
+		try {
+			ListingCache cache = new ListingCache(FileSystems.getDefault().newWatchService());
+			Thread thread = new Thread(cache, "listing-watcher");
+			thread.setDaemon(true);
+			thread.start();
+			return cache;
+		} catch (IOException | UnsupportedOperationException e) {
+			return null;
+		}
+	}
+
+	// the cached listing of directory in this mode, or null
+	synchronized String get(File directory, String mode) {
+		Directory cached = watch(directory);
+		return cached == null ? null : cached.listings.get(mode);
+	}
+
+	// taken before listing directory and handed back to put, or -1 if it can't be cached
+	synchronized long version(File directory) {
+		Directory cached = watch(directory);
+		return cached == null ? -1 : cached.version;
+	}
+
+	// kept only if directory hasn't changed since version was taken
+	synchronized void put(File directory, String mode, String listing, long version) {
+		Directory cached = directories.get(keyOf(directory));
+		if (cached != null && cached.version == version) {
+			cached.listings.put(mode, listing);
+		}
+	}
+
+	// something in directory was written, renamed or deleted
+	synchronized void invalidate(File directory) {
+		Directory cached = directories.get(keyOf(directory));
+		if (cached != null) {
+			changed(cached);
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				WatchKey key = watcher.take();
+				boolean overflow = false;
+				for (WatchEvent<?> event : key.pollEvents()) {
+					overflow |= event.kind() == StandardWatchEventKinds.OVERFLOW;
+				}
+
+				synchronized (this) {
+					Directory cached = byKey.get(key);
+					if (cached != null) {
+						changed(cached);
+					}
+					if (overflow) {
+						for (Directory directory : directories.values()) {
+							changed(directory);
+						}
+					}
+					if (!key.reset() && cached != null) {
+						// directory is gone
+						directories.remove(cached.key);
+						byKey.remove(key);
+					}
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// shutting down
+		}
+	}
+
+	private Directory watch(File directory) {
+		String key = keyOf(directory);
+		Directory cached = directories.get(key);
+
+		if (cached == null && directories.size() < MAX_DIRECTORIES) {
+			try {
+				WatchKey watchKey = directory.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+				cached = new Directory(key, watchKey);
+				directories.put(key, cached);
+				byKey.put(watchKey, cached);
+			} catch (IOException e) {
+				return null;
+			}
+		}
+		return cached;
+	}
+
+	private static void changed(Directory directory) {
+		directory.version++;
+		directory.listings.clear();
+	}
+
+	private static String keyOf(File directory) {
+		Path path = directory.getAbsoluteFile().toPath().normalize();
+		return path.toString();
+	}
+}
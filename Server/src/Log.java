@@ -0,0 +1,195 @@
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Server log. A call only claims a slot in a preallocated ring and fills it in;
+ * one background thread formats and prints the slots in order, so request
+ * threads never wait on System.out or on each other. When the ring is full the
+ * entry is dropped and counted instead of waiting for room.
+ *
+ * Each line carries the session it belongs to ("s12", "-" for none), and
+ * high-frequency events (every command, every transfer) go through sampled(),
+ * which keeps about 1 in -Dsftp.logSample of them.
+ **/
+final class Log implements Runnable {
+
+	enum Level {
+		DEBUG, INFO, WARN, ERROR
+	}
+
+	static final long NO_SESSION = 0;
+
+	private static final Level LEVEL = Level.valueOf(ServerConfig.LOG_LEVEL.toUpperCase());
+	private static final int SAMPLE = Math.max(1, ServerConfig.LOG_SAMPLE);
+	private static final int CAPACITY = Integer.highestOneBit(Math.max(2, ServerConfig.LOG_BUFFER));
+
+	// idle wait of the writer thread between polls of the ring
+	private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS")
+			.withZone(ZoneId.systemDefault());
+
+	private static final AtomicLong sessions = new AtomicLong();
+	private static final Log log = start();
+
+	private static final class Slot {
+		// sequence this slot was last filled for; the writer only reads it once this matches
+		volatile long published = -1;
+		Level level;
+		long millis;
+		long session;
+		String event;
+		Object detail;
+		Throwable thrown;
+	}
+
+	private final Slot[] ring = new Slot[CAPACITY];
+	private final AtomicLong claimed = new AtomicLong();
+	private final LongAdder dropped = new LongAdder();
+	private volatile long written;
+	private final PrintWriter out = new PrintWriter(
+			new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 64 * 1024));
+
+	private Log() {
+		for (int i = 0; i < ring.length; i++) {
+			ring[i] = new Slot();
+		}
+	}
+
+	private static Log start() {
+		Log log = new Log();
+		Thread writer = new Thread(log, "log-writer");
+		writer.setDaemon(true);
+		writer.start();
+		// what is still in the ring when the server stops
+		Runtime.getRuntime().addShutdownHook(new Thread(log::drain, "log-flush"));
+		return log;
+	}
+
+	// correlation id for a new session
+	static long newSession() {
+		return sessions.incrementAndGet();
+	}
+
+	static void debug(long session, String event, Object detail) {
+		log(Level.DEBUG, session, event, detail, null);
+	}
+
+	static void info(long session, String event, Object detail) {
+		log(Level.INFO, session, event, detail, null);
+	}
+
+	static void warn(long session, String event, Object detail, Throwable thrown) {
+		log(Level.WARN, session, event, detail, thrown);
+	}
+
+	static void error(long session, String event, Object detail, Throwable thrown) {
+		log(Level.ERROR, session, event, detail, thrown);
+	}
+
+	// for events that happen on every command or transfer
+	static void sampled(Level level, long session, String event, Object detail) {
+		if (SAMPLE == 1 || ThreadLocalRandom.current().nextInt(SAMPLE) == 0) {
+			log(level, session, event, detail, null);
+		}
+	}
+
+	// detail is only turned into text on the writer thread, so it must not change afterwards
+	static void log(Level level, long session, String event, Object detail, Throwable thrown) {
+		if (level.compareTo(LEVEL) < 0) {
+			return;
+		}
+		log.append(level, session, event, detail, thrown);
+	}
+
+	private void append(Level level, long session, String event, Object detail, Throwable thrown) {
+		long sequence;
+		do {
+			sequence = claimed.get();
+			if (sequence - written >= CAPACITY) {
+				dropped.increment();
+				return;
+			}
+		} while (!claimed.compareAndSet(sequence, sequence + 1));
+
+		Slot slot = ring[(int) sequence & (CAPACITY - 1)];
+		slot.level = level;
+		slot.millis = System.currentTimeMillis();
+		slot.session = session;
+		slot.event = event;
+		slot.detail = detail;
+		slot.thrown = thrown;
+		slot.published = sequence;
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			if (!drain()) {
+				LockSupport.parkNanos(IDLE_NANOS);
+			}
+		}
+	}
+
+	// writes out whatever is ready; false if there was nothing
+	private synchronized boolean drain() {
+		boolean any = false;
+		long next = written;
+
+		while (true) {
+			Slot slot = ring[(int) next & (CAPACITY - 1)];
+			if (slot.published != next) {
+				break;
+			}
+			write(slot);
+			slot.detail = null;
+			slot.thrown = null;
+			next++;
+			written = next;
+			any = true;
+		}
+
+		long lost = dropped.sumThenReset();
+		if (lost > 0) {
+			out.println(TIME.format(Instant.now()) + " WARN  - log dropped " + lost + " entries");
+			any = true;
+		}
+		if (any) {
+			out.flush();
+		}
+		return any;
+	}
+
+	private void write(Slot slot) {
+		StringBuilder line = new StringBuilder(96);
+		line.append(TIME.format(Instant.ofEpochMilli(slot.millis))).append(' ');
+		line.append(slot.level.name());
+		for (int i = slot.level.name().length(); i < 5; i++) {
+			line.append(' ');
+		}
+		line.append(' ');
+		if (slot.session == NO_SESSION) {
+			line.append('-');
+		} else {
+			line.append('s').append(slot.session);
+		}
+		line.append(' ').append(slot.event);
+		if (slot.detail != null) {
+			line.append(' ').append(slot.detail);
+		}
+		out.println(line);
+		if (slot.thrown != null) {
+			slot.thrown.printStackTrace(out);
+		}
+	}
+}
@@ -0,0 +1,187 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * NUL-terminated control message framing, shared by the client and the server.
+ * Bytes are read into one reusable buffer and each message is cut straight out
+ * of it, so a message costs a single String and no per-character garbage.
+ * Anything behind the last complete message (e.g. the start of a file) stays in
+ * the buffer and is handed out first by inputStream / channel.
+ **/
+final class MessageCodec {
+	private static final int INITIAL_CAPACITY = 8192;
+
+	private final int maxMessageLength;
+
+	// kept in read mode (flipped) between calls
+	private ByteBuffer buffer;
+
+	// bytes of the current partial message already checked for NUL
+	private int scanned;
+
+	MessageCodec(int maxMessageLength) {
+		this.maxMessageLength = maxMessageLength;
+		buffer = ByteBuffer.allocate(Math.min(INITIAL_CAPACITY, maxMessageLength + 1));
+		buffer.flip();
+	}
+
+	// next complete message already buffered, or null if more bytes are needed
+	String nextMessage() throws ProtocolException {
+		byte[] array = buffer.array();
+		int start = buffer.arrayOffset() + buffer.position();
+		int end = buffer.arrayOffset() + buffer.limit();
+
+		for (int i = start + scanned; i < end; i++) {
+			if (array[i] == 0) {
+				String message = new String(array, start, i - start, StandardCharsets.ISO_8859_1);
+				buffer.position(buffer.position() + i - start + 1);
+				scanned = 0;
+				return message;
+			}
+		}
+
+		scanned = end - start;
+		if (scanned > maxMessageLength) {
+			throw new ProtocolException("message longer than " + maxMessageLength + " bytes");
+		}
+		return null;
+	}
+
+	// blocking read of one whole message; EOFException when the peer closes between messages
+	String readMessage(InputStream in) throws IOException {
+		while (true) {
+			String message = nextMessage();
+			if (message != null) {
+				return message;
+			}
+			if (readFrom(in) < 0) {
+				throw new EOFException("connection closed");
+			}
+		}
+	}
+
+	// the next message goes to out as it arrives rather than being held whole, for replies of any
+	// length; returns its length. EOFException if the connection closes first
+	long copyMessage(InputStream in, OutputStream out) throws IOException {
+		long copied = 0;
+		scanned = 0;
+
+		while (true) {
+			byte[] array = buffer.array();
+			int start = buffer.arrayOffset() + buffer.position();
+			int end = buffer.arrayOffset() + buffer.limit();
+
+			for (int i = start; i < end; i++) {
+				if (array[i] == 0) {
+					out.write(array, start, i - start);
+					buffer.position(buffer.position() + i - start + 1);
+					return copied + i - start;
+				}
+			}
+
+			out.write(array, start, end - start);
+			copied += end - start;
+			buffer.position(buffer.limit());
+
+			if (readFrom(in) < 0) {
+				throw new EOFException("connection closed");
+			}
+		}
+	}
+
+	int readFrom(InputStream in) throws IOException {
+		makeRoom();
+		int count = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+		if (count > 0) {
+			buffer.position(buffer.position() + count);
+		}
+		buffer.flip();
+		return count;
+	}
+
+	int readFrom(ReadableByteChannel channel) throws IOException {
+		makeRoom();
+		int count = channel.read(buffer);
+		buffer.flip();
+		return count;
+	}
+
+	private void makeRoom() {
+		buffer.compact();
+
+		if (!buffer.hasRemaining() && buffer.capacity() <= maxMessageLength) {
+			ByteBuffer bigger = ByteBuffer.allocate((int) Math.min(buffer.capacity() * 2L, maxMessageLength + 1L));
+			buffer.flip();
+			bigger.put(buffer);
+			buffer = bigger;
+		}
+	}
+
+	int buffered() {
+		return buffer.remaining();
+	}
+
+	int drain(byte[] b, int off, int len) {
+		int count = Math.min(len, buffer.remaining());
+		buffer.get(b, off, count);
+		scanned = Math.max(0, scanned - count);
+		return count;
+	}
+
+	int drain(ByteBuffer dst) {
+		int count = Math.min(dst.remaining(), buffer.remaining());
+		ByteBuffer slice = buffer.duplicate();
+		slice.limit(slice.position() + count);
+		dst.put(slice);
+		buffer.position(buffer.position() + count);
+		scanned = Math.max(0, scanned - count);
+		return count;
+	}
+
+	// raw bytes after the last message: buffered ones first, then the connection itself
+	InputStream inputStream(final InputStream rest) {
+		return new InputStream() {
+			@Override
+			public int read() throws IOException {
+				byte[] one = new byte[1];
+				int count = read(one, 0, 1);
+				return count <= 0 ? -1 : one[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (buffer.hasRemaining()) {
+					return drain(b, off, len);
+				}
+				return rest.read(b, off, len);
+			}
+		};
+	}
+
+	ReadableByteChannel channel(final ReadableByteChannel rest) {
+		return new ReadableByteChannel() {
+			@Override
+			public int read(ByteBuffer dst) throws IOException {
+				if (buffer.hasRemaining()) {
+					return drain(dst);
+				}
+				return rest.read(dst);
+			}
+
+			@Override
+			public boolean isOpen() {
+				return rest.isOpen();
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+}
@@ -0,0 +1,203 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Server-wide counters: per command verb how many and how long, control and
+ * file bytes in and out, sessions, RETR/STOR transfer rates and how long USER
+ * waits for its user lookup. Everything is a LongAdder or a
+ * ConcurrentHistogram, so recording never makes sessions wait on each other.
+ * Read through STAT or over JMX.
+ **/
+final class Metrics implements MetricsMXBean {
+	private static final String OBJECT_NAME = "sftp:type=Metrics";
+
+	private final long startedAt = System.nanoTime();
+
+	private final ConcurrentHistogram[] commands = new ConcurrentHistogram[Command.Verb.values().length];
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder bytesOut = new LongAdder();
+	private final LongAdder sessionsOpened = new LongAdder();
+	private final LongAdder sessionsClosed = new LongAdder();
+	private final Transfers retrieved = new Transfers();
+	private final Transfers stored = new Transfers();
+	private final ConcurrentHistogram authQueries = new ConcurrentHistogram();
+
+	private static final class Transfers {
+		final ConcurrentHistogram times = new ConcurrentHistogram();
+		final LongAdder bytes = new LongAdder();
+
+		void record(long count, long nanos) {
+			bytes.add(count);
+			times.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+		}
+
+		// over the time spent transferring, not since startup
+		double megabytesPerSecond() {
+			long micros = times.sum();
+			return micros == 0 ? 0 : bytes.sum() / (micros / 1e6) / (1024 * 1024);
+		}
+	}
+
+	private Metrics() {
+		for (int i = 0; i < commands.length; i++) {
+			commands[i] = new ConcurrentHistogram();
+		}
+	}
+
+	// also registered as an MXBean, unless there already is one (or no JMX)
+	static Metrics register() {
+		Metrics metrics = new Metrics();
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName(OBJECT_NAME));
+		} catch (JMException | SecurityException e) {
+			Log.warn(Log.NO_SESSION, "metrics not available over JMX", e, null);
+		}
+		return metrics;
+	}
+
+	void command(Command.Verb verb, long nanos) {
+		commands[verb.ordinal()].record(TimeUnit.NANOSECONDS.toMicros(nanos));
+	}
+
+	void received(long bytes) {
+		bytesIn.add(bytes);
+	}
+
+	void sent(long bytes) {
+		bytesOut.add(bytes);
+	}
+
+	void sessionOpened() {
+		sessionsOpened.increment();
+	}
+
+	void sessionClosed() {
+		sessionsClosed.increment();
+	}
+
+	// file bytes of one RETR or MRET
+	void retrieved(long bytes, long nanos) {
+		retrieved.record(bytes, nanos);
+		sent(bytes);
+	}
+
+	// file bytes of one STOR
+	void stored(long bytes, long nanos) {
+		stored.record(bytes, nanos);
+		received(bytes);
+	}
+
+	void authQuery(long nanos) {
+		authQueries.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+	}
+
+	List<String> report() {
+		List<String> lines = new ArrayList<String>();
+		lines.add(String.format("uptime %d s, sessions %d active, %d opened",
+				TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startedAt), getActiveSessions(), getSessionsOpened()));
+		lines.add(String.format("bytes in %d, out %d", getBytesIn(), getBytesOut()));
+		lines.add(String.format("RETR %d transfers, %d bytes, %.1f MB/s", retrieved.times.count(), retrieved.bytes.sum(),
+				retrieved.megabytesPerSecond()));
+		lines.add(String.format("STOR %d transfers, %d bytes, %.1f MB/s", stored.times.count(), stored.bytes.sum(),
+				stored.megabytesPerSecond()));
+		lines.add(latencyLine("auth", authQueries));
+		for (Command.Verb verb : Command.Verb.values()) {
+			ConcurrentHistogram histogram = commands[verb.ordinal()];
+			if (histogram.count() > 0) {
+				lines.add(latencyLine(verb.name(), histogram));
+			}
+		}
+		return lines;
+	}
+
+	private static String latencyLine(String name, ConcurrentHistogram histogram) {
+		return String.format("%s %d, p50 %.3f ms, p99 %.3f ms, p999 %.3f ms, max %.3f ms", name, histogram.count(),
+				histogram.percentile(0.50) / 1000.0, histogram.percentile(0.99) / 1000.0,
+				histogram.percentile(0.999) / 1000.0, histogram.max() / 1000.0);
+	}
+
+	@Override
+	public long getActiveSessions() {
+		return sessionsOpened.sum() - sessionsClosed.sum();
+	}
+
+	@Override
+	public long getSessionsOpened() {
+		return sessionsOpened.sum();
+	}
+
+	@Override
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	@Override
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	@Override
+	public Map<String, Long> getCommandCounts() {
+		Map<String, Long> counts = new TreeMap<String, Long>();
+		for (Command.Verb verb : Command.Verb.values()) {
+			counts.put(verb.name(), commands[verb.ordinal()].count());
+		}
+		return counts;
+	}
+
+	@Override
+	public Map<String, Double> getCommandP50Millis() {
+		return commandPercentiles(0.50);
+	}
+
+	@Override
+	public Map<String, Double> getCommandP99Millis() {
+		return commandPercentiles(0.99);
+	}
+
+	@Override
+	public Map<String, Double> getCommandP999Millis() {
+		return commandPercentiles(0.999);
+	}
+
+	private Map<String, Double> commandPercentiles(double fraction) {
+		Map<String, Double> millis = new TreeMap<String, Double>();
+		for (Command.Verb verb : Command.Verb.values()) {
+			millis.put(verb.name(), commands[verb.ordinal()].percentile(fraction) / 1000.0);
+		}
+		return millis;
+	}
+
+	@Override
+	public double getRetrMegabytesPerSecond() {
+		return retrieved.megabytesPerSecond();
+	}
+
+	@Override
+	public double getStorMegabytesPerSecond() {
+		return stored.megabytesPerSecond();
+	}
+
+	@Override
+	public long getAuthQueries() {
+		return authQueries.count();
+	}
+
+	@Override
+	public double getAuthQueryP99Millis() {
+		return authQueries.percentile(0.99) / 1000.0;
+	}
+
+	@Override
+	public List<String> getReport() {
+		return report();
+	}
+}
@@ -0,0 +1,35 @@
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What Metrics shows over JMX, as sftp:type=Metrics. Latencies are in
+ * milliseconds, keyed by command verb.
+ **/
+public interface MetricsMXBean {
+	long getActiveSessions();
+
+	long getSessionsOpened();
+
+	long getBytesIn();
+
+	long getBytesOut();
+
+	Map<String, Long> getCommandCounts();
+
+	Map<String, Double> getCommandP50Millis();
+
+	Map<String, Double> getCommandP99Millis();
+
+	Map<String, Double> getCommandP999Millis();
+
+	double getRetrMegabytesPerSecond();
+
+	double getStorMegabytesPerSecond();
+
+	long getAuthQueries();
+
+	double getAuthQueryP99Millis();
+
+	// the same lines STAT sends
+	List<String> getReport();
+}
@@ -0,0 +1,233 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * Selector engine side of one client. Splits incoming bytes into NUL-terminated
+ * messages for the session and queues replies until the socket can take them.
+ * A transfer takes the channel off the selector, runs it in blocking mode on a
+ * worker, then gives the channel back to its loop.
+ **/
+class NioConnection implements SessionTransport {
+	private final SocketChannel channel;
+	private final SelectorEngine.EventLoop loop;
+	private final Executor transferExecutor;
+	private final ClientSession session;
+
+	private SelectionKey key;
+
+	// may hold bytes of the next message or of a file behind the last message
+	private final MessageCodec codec = new MessageCodec(ServerConfig.MAX_MESSAGE_LENGTH);
+
+	private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<ByteBuffer>();
+
+	private Runnable pendingTransfer;
+	private boolean blocking;
+	private boolean connected;
+	private boolean closeAfterFlush;
+	private volatile boolean closed;
+
+	public NioConnection(SocketChannel channel, SelectorEngine.EventLoop loop, Executor transferExecutor) {
+		this.channel = channel;
+		this.loop = loop;
+		this.transferExecutor = transferExecutor;
+		this.session = new ClientSession(this);
+	}
+
+	// called on the loop thread when the connection (re)joins it
+	void attach(Selector selector) {
+		try {
+			channel.configureBlocking(false);
+			key = channel.register(selector, SelectionKey.OP_READ, this);
+		} catch (IOException e) {
+			closeNow();
+			return;
+		}
+
+		if (!connected) {
+			connected = true;
+			session.onConnect();
+		}
+		flushQueue();
+		// bytes that arrived behind the last transfer
+		processMessages();
+	}
+
+	void onReadable() {
+		try {
+			int count = codec.readFrom(channel);
+
+			if (count < 0) {
+				closeNow();
+				return;
+			}
+		} catch (IOException e) {
+			closeNow();
+			return;
+		}
+		processMessages();
+	}
+
+	void onWritable() {
+		flushQueue();
+	}
+
+	private void processMessages() {
+		try {
+			String clientRequest;
+			while (pendingTransfer == null && !closed && !closeAfterFlush
+					&& (clientRequest = codec.nextMessage()) != null) {
+				session.handleMessage(clientRequest);
+			}
+		} catch (ProtocolException e) {
+			Log.warn(session.logId(), "protocol error", e.getMessage(), null);
+			closeNow();
+			return;
+		} catch (RuntimeException e) {
+			// a broken session must not take the whole loop down
+			Log.error(session.logId(), "session failed", null, e);
+			closeNow();
+			return;
+		}
+
+		if (pendingTransfer != null && !closed) {
+			key.cancel();
+			loop.handOff(this);
+		}
+	}
+
+	// called on the loop thread once the key is gone from the selector
+	void startTransfer() {
+		final Runnable transfer = pendingTransfer;
+		pendingTransfer = null;
+
+		transferExecutor.execute(() -> {
+			try {
+				channel.configureBlocking(true);
+				blocking = true;
+				flushQueue();
+
+				transfer.run();
+
+				blocking = false;
+				if (!closed) {
+					channel.configureBlocking(false);
+					loop.register(this);
+				}
+			} catch (IOException e) {
+				Log.warn(session.logId(), "transfer failed", null, e);
+				closeNow();
+			} catch (RuntimeException e) {
+				Log.error(session.logId(), "transfer failed", null, e);
+				closeNow();
+			}
+		});
+	}
+
+	private void flushQueue() {
+		try {
+			while (!writeQueue.isEmpty()) {
+				ByteBuffer head = writeQueue.peek();
+				channel.write(head);
+				if (head.hasRemaining()) {
+					// only possible in non-blocking mode
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+				writeQueue.poll();
+			}
+		} catch (IOException e) {
+			closeNow();
+			return;
+		}
+
+		if (closeAfterFlush) {
+			closeNow();
+		} else if (!blocking && key != null && key.isValid()) {
+			key.interestOps(SelectionKey.OP_READ);
+		}
+	}
+
+	@Override
+	public void writeMessage(byte[] message) {
+		if (closed) {
+			return;
+		}
+		writeQueue.add(ByteBuffer.wrap(message));
+		if (key != null && (blocking || key.isValid())) {
+			flushQueue();
+		}
+	}
+
+	@Override
+	public InputStream dataIn() {
+		return codec.inputStream(Channels.newInputStream(channel));
+	}
+
+	@Override
+	public ReadableByteChannel dataChannel() {
+		return codec.channel(channel);
+	}
+
+	@Override
+	public OutputStream dataOut() {
+		return Channels.newOutputStream(channel);
+	}
+
+	@Override
+	public SocketChannel channel() {
+		return channel;
+	}
+
+	@Override
+	public void runTransfer(Runnable transfer) {
+		if (blocking) {
+			transfer.run();
+		} else {
+			pendingTransfer = transfer;
+		}
+	}
+
+	@Override
+	public void close() {
+		if (!blocking && !writeQueue.isEmpty() && key != null && key.isValid()) {
+			// let the last reply (e.g. DONE) reach the client first
+			closeAfterFlush = true;
+			key.interestOps(SelectionKey.OP_WRITE);
+			return;
+		}
+		closeNow();
+	}
+
+	private void closeNow() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			Log.warn(session.logId(), "close failed", null, e);
+		}
+		if (connected) {
+			session.onClose();
+		}
+	}
+
+	@Override
+	public boolean isClosed() {
+		return closed;
+	}
+}
@@ -0,0 +1,124 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Non-blocking engine. A small pool of selector loops (one per core by default)
+ * owns every connection, so idle sessions cost a buffer and a key instead of a
+ * thread. Control messages are handled on the loop; file transfers are handed
+ * to a worker and the connection rejoins its loop afterwards.
+ **/
+class SelectorEngine {
+	private ServerSocketChannel serverChannel;
+	private EventLoop[] loops;
+	private ExecutorService transferExecutor;
+
+	public SelectorEngine(int port, int loopCount) throws IOException {
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(port), ServerConfig.BACKLOG);
+
+		transferExecutor = TCPServer.newSessionExecutor();
+
+		loops = new EventLoop[Math.max(1, loopCount)];
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new EventLoop();
+			Thread thread = new Thread(loops[i], "sftp-loop-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	public void start() {
+		int next = 0;
+
+		while (serverChannel.isOpen()) {
+			try {
+				SocketChannel channel = serverChannel.accept();
+				EventLoop loop = loops[next];
+				next = (next + 1) % loops.length;
+
+				loop.register(new NioConnection(channel, loop, transferExecutor));
+			} catch (IOException e) {
+				Log.warn(Log.NO_SESSION, "accept failed", null, e);
+			}
+		}
+		transferExecutor.shutdown();
+	}
+
+	static class EventLoop implements Runnable {
+		private final Selector selector;
+
+		// connections joining this loop, either new or back from a transfer
+		private final Queue<NioConnection> joining = new ConcurrentLinkedQueue<NioConnection>();
+
+		// connections leaving this loop for a transfer after the current round
+		private final List<NioConnection> leaving = new ArrayList<NioConnection>();
+
+		EventLoop() throws IOException {
+			selector = Selector.open();
+		}
+
+		void register(NioConnection connection) {
+			joining.add(connection);
+			selector.wakeup();
+		}
+
+		void handOff(NioConnection connection) {
+			leaving.add(connection);
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				try {
+					// the selectNow() below uses up a wakeup() from register(), so never sleep with
+					// connections still waiting to join
+					if (joining.isEmpty()) {
+						selector.select();
+					} else {
+						selector.selectNow();
+					}
+
+					NioConnection connection;
+					while ((connection = joining.poll()) != null) {
+						connection.attach(selector);
+					}
+
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						connection = (NioConnection) key.attachment();
+
+						if (key.isValid() && key.isReadable()) {
+							connection.onReadable();
+						}
+						if (key.isValid() && key.isWritable()) {
+							connection.onWritable();
+						}
+					}
+
+					if (!leaving.isEmpty()) {
+						// flush the cancelled keys so the channels can go back to blocking mode
+						selector.selectNow();
+						for (NioConnection c : leaving) {
+							c.startTransfer();
+						}
+						leaving.clear();
+					}
+				} catch (IOException e) {
+					Log.warn(Log.NO_SESSION, "event loop", null, e);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,78 @@
+/**
+ * Startup options, read once from -D system properties, e.g.
+ * java -Dsftp.engine=nio TCPServer
+ **/
+final class ServerConfig {
+
+	static final int PORT = Integer.getInteger("sftp.port", 6789);
+
+	static final int BACKLOG = Integer.getInteger("sftp.backlog", 1024);
+
+	// longest control message accepted before the connection is dropped
+	static final int MAX_MESSAGE_LENGTH = Integer.getInteger("sftp.maxMessageLength", 64 * 1024);
+
+	// "blocking" = one thread per session, "nio" = selector event loops
+	static final String ENGINE = System.getProperty("sftp.engine", "blocking");
+
+	static final int EVENT_LOOPS = Integer.getInteger("sftp.eventLoops", Runtime.getRuntime().availableProcessors());
+
+	// keep STOR'd content once under storage/.blobs, see BlobStore
+	static final boolean DEDUP = Boolean.getBoolean("sftp.dedup");
+
+	// off-heap RETR cache budget in bytes, 0 = no cache (see FileCache)
+	static final long CACHE_BYTES = Long.getLong("sftp.cacheBytes", 0);
+
+	// RETRs of a file before it is worth a place in the cache
+	static final int CACHE_ADMIT_HITS = Integer.getInteger("sftp.cacheAdmitHits", 2);
+
+	// keep LIST output per directory until it changes (see ListingCache)
+	static final boolean LIST_CACHE = Boolean.parseBoolean(System.getProperty("sftp.listCache", "true"));
+
+	// open SQLite connections kept for user lookups
+	static final int DB_POOL_SIZE = Integer.getInteger("sftp.dbPoolSize", 4);
+
+	// how long a looked-up user is trusted before the database is asked again, 0 = always ask
+	static final long USER_CACHE_TTL = Long.getLong("sftp.userCacheTtl", 30000);
+
+	// keep every user in memory, reloaded when peopleDB.db changes (see UserDirectory)
+	static final boolean USER_SNAPSHOT = Boolean.getBoolean("sftp.userSnapshot");
+
+	// bytes per second over all RETR/STOR transfers together, 0 = unlimited (see TransferScheduler)
+	static final long MAX_RATE = Long.getLong("sftp.maxRate", 0);
+
+	// bytes per second per user, unless userlist.rateLimit says otherwise; 0 = unlimited
+	static final long USER_RATE = Long.getLong("sftp.userRate", 0);
+
+	// DEBUG, INFO, WARN or ERROR (see Log)
+	static final String LOG_LEVEL = System.getProperty("sftp.logLevel", "INFO");
+
+	// keep about 1 in this many per-command and per-transfer log lines
+	static final int LOG_SAMPLE = Integer.getInteger("sftp.logSample", 1);
+
+	// log entries waiting to be written before new ones are dropped
+	static final int LOG_BUFFER = Integer.getInteger("sftp.logBuffer", 8192);
+
+	// STOR in TYPE B/C: read the socket and write the file on separate threads (see WriteBehind)
+	static final boolean WRITE_BEHIND = Boolean.parseBoolean(System.getProperty("sftp.writeBehind", "true"));
+
+	// threads writing uploads to disk
+	static final int IO_THREADS = Integer.getInteger("sftp.ioThreads", 2);
+
+	// size of each write-behind buffer
+	static final int IO_BUFFER_SIZE = Integer.getInteger("sftp.ioBufferSize", 256 * 1024);
+
+	// write-behind buffers over all uploads; once they are all queued, uploads write for themselves
+	static final int IO_BUFFERS = Integer.getInteger("sftp.ioBuffers", 64);
+
+	// write-behind buffers one upload may have waiting for the disk
+	static final int IO_DEPTH = Integer.getInteger("sftp.ioDepth", 4);
+
+	// NONE, CLOSE or GROUP: what "Saved" promises about the disk (see DiskSync)
+	static final String FSYNC = System.getProperty("sftp.fsync", "NONE");
+
+	// how long a GROUP commit waits for other uploads to join it
+	static final long FSYNC_WINDOW = Long.getLong("sftp.fsyncWindow", 2);
+
+	private ServerConfig() {
+	}
+}
@@ -0,0 +1,32 @@
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * The connection underneath a ClientSession. Lets the same command handling run
+ * on the blocking thread-per-session engine and on the selector engine.
+ **/
+interface SessionTransport {
+
+	// one complete control reply, already NUL-terminated
+	void writeMessage(byte[] message);
+
+	// raw file contents, only used from inside runTransfer
+	InputStream dataIn();
+
+	OutputStream dataOut();
+
+	// same bytes as dataIn, as a channel; never reads more than the caller's buffer asks for
+	ReadableByteChannel dataChannel();
+
+	// the socket as a channel for zero-copy transfers, or null if there isn't one
+	SocketChannel channel();
+
+	// run a data phase (file bytes after SEND or SIZE) that needs blocking reads/writes
+	void runTransfer(Runnable transfer);
+
+	void close();
+
+	boolean isClosed();
+}
@@ -0,0 +1,116 @@
+import java.io.*;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Blocking engine: one thread reads messages off the socket and feeds them to
+ * the session. Transfers simply run on the same thread.
+ **/
+class SocketConnection implements SessionTransport, Runnable {
+	private Socket connectionSocket;
+	private InputStream inFromClient;
+	private OutputStream outToClient;
+
+	// control messages and file data share this buffer so no bytes get lost between them
+	private MessageCodec codec = new MessageCodec(ServerConfig.MAX_MESSAGE_LENGTH);
+
+	private ClientSession session;
+
+	public SocketConnection(Socket connectionSocket) throws IOException {
+		this.connectionSocket = connectionSocket;
+
+		inFromClient = connectionSocket.getInputStream();
+		outToClient = connectionSocket.getOutputStream();
+
+		session = new ClientSession(this);
+	}
+
+	@Override
+	public void run() {
+		try {
+			session.onConnect();
+
+			while (!connectionSocket.isClosed()) {
+				String clientRequest;
+				try {
+					clientRequest = codec.readMessage(inFromClient);
+				} catch (EOFException e) {
+					// client went away
+					close();
+					break;
+				} catch (ProtocolException e) {
+					Log.warn(session.logId(), "protocol error", e.getMessage(), null);
+					close();
+					break;
+				} catch (IOException e) {
+					Log.warn(session.logId(), "read failed", null, e);
+					close();
+					break;
+				}
+				session.handleMessage(clientRequest);
+			}
+		} catch (RuntimeException e) {
+			// a broken session must not leave its client hanging on an open socket
+			Log.error(session.logId(), "session failed", null, e);
+			close();
+		} finally {
+			session.onClose();
+		}
+	}
+
+	@Override
+	public void writeMessage(byte[] message) {
+		try {
+			outToClient.write(message);
+		} catch (IOException e) {
+			Log.warn(session.logId(), "write failed", null, e);
+		}
+	}
+
+	@Override
+	public InputStream dataIn() {
+		return codec.inputStream(inFromClient);
+	}
+
+	@Override
+	public ReadableByteChannel dataChannel() {
+		SocketChannel socketChannel = connectionSocket.getChannel();
+		if (socketChannel != null) {
+			return codec.channel(socketChannel);
+		}
+		return codec.channel(Channels.newChannel(inFromClient));
+	}
+
+	@Override
+	public OutputStream dataOut() {
+		return outToClient;
+	}
+
+	@Override
+	public SocketChannel channel() {
+		// set when the socket came from a ServerSocketChannel
+		return connectionSocket.getChannel();
+	}
+
+	@Override
+	public void runTransfer(Runnable transfer) {
+		transfer.run();
+	}
+
+	@Override
+	public void close() {
+		try {
+			connectionSocket.close();
+		} catch (IOException e) {
+			Log.warn(session.logId(), "close failed", null, e);
+		}
+	}
+
+	@Override
+	public boolean isClosed() {
+		return connectionSocket.isClosed();
+	}
+}
@@ -0,0 +1,52 @@
+/**
+ * Bytes per second with a burst allowance. take() always succeeds but may put
+ * the bucket in debt, and says how long the caller should then wait; the next
+ * taker waits for that debt first, so the rate holds over time.
+ **/
+final class TokenBucket {
+	private volatile long rate;
+	private double tokens;
+	private long refilledAt = System.nanoTime();
+
+	TokenBucket(long rate) {
+		this.rate = rate;
+		this.tokens = burst(rate);
+	}
+
+	// a quarter of a second's worth, but at least a transfer quantum
+	private static double burst(long rate) {
+		return Math.max(TransferScheduler.QUANTUM, rate / 4.0);
+	}
+
+	long rate() {
+		return rate;
+	}
+
+	// the user record may change on a reload
+	void setRate(long rate) {
+		this.rate = rate;
+	}
+
+	// takes count bytes; nanoseconds until the bucket is out of debt again, 0 if it isn't in debt
+	synchronized long take(long count) {
+		refill();
+		tokens -= count;
+		return debt();
+	}
+
+	// nanoseconds until the bucket is out of debt, 0 if it isn't
+	synchronized long debtNanos() {
+		refill();
+		return debt();
+	}
+
+	private long debt() {
+		return tokens >= 0 ? 0 : (long) Math.ceil(-tokens * 1e9 / rate);
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(burst(rate), tokens + (now - refilledAt) * rate / 1e9);
+		refilledAt = now;
+	}
+}
@@ -0,0 +1,264 @@
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bandwidth shaping for RETR, MRET and STOR. A transfer moves its bytes in
+ * quanta of QUANTUM, and each quantum is paid for first: to the user's token
+ * bucket if the user has a rate limit, then to the server's if there is one.
+ *
+ * Quanta waiting for the server's bucket are served weighted-fair: each
+ * transfer's quanta get finish tags that advance by size / weight, and the
+ * smallest tag goes next. Small transfers weigh more, so they get through
+ * between the quanta of a bulk download rather than behind all of it, while
+ * the bulk download still gets whatever bandwidth nobody else is asking for.
+ **/
+final class TransferScheduler {
+	static final int QUANTUM = 64 * 1024;
+
+	// transfers up to this size count as interactive
+	private static final long SMALL_TRANSFER = 1024 * 1024;
+	private static final double SMALL_WEIGHT = 16;
+
+	private final TokenBucket global;
+	private final long defaultUserRate;
+	private final ConcurrentHashMap<String, TokenBucket> users = new ConcurrentHashMap<String, TokenBucket>();
+
+	// guarded by this
+	private final PriorityQueue<Waiter> waiting = new PriorityQueue<Waiter>();
+	private double virtualTime;
+	private long arrivals;
+
+	private static final class Waiter implements Comparable<Waiter> {
+		final double finish;
+		final long arrival;
+
+		Waiter(double finish, long arrival) {
+			this.finish = finish;
+			this.arrival = arrival;
+		}
+
+		@Override
+		public int compareTo(Waiter other) {
+			int order = Double.compare(finish, other.finish);
+			return order != 0 ? order : Long.compare(arrival, other.arrival);
+		}
+	}
+
+	// rates in bytes per second, 0 = unlimited
+	TransferScheduler(long globalRate, long defaultUserRate) {
+		this.global = globalRate > 0 ? new TokenBucket(globalRate) : null;
+		this.defaultUserRate = defaultUserRate;
+	}
+
+	// how a transfer of size bytes for user should be paced, null if nothing limits it
+	Flow open(Users user, long size) {
+		long rate = user != null && user.getRateLimit() > 0 ? user.getRateLimit() : defaultUserRate;
+		TokenBucket bucket = null;
+
+		if (rate > 0 && user != null && user.getUsername() != null) {
+			bucket = users.computeIfAbsent(user.getUsername(), name -> new TokenBucket(rate));
+			if (bucket.rate() != rate) {
+				bucket.setRate(rate);
+			}
+		}
+		if (bucket == null && global == null) {
+			return null;
+		}
+		return new Flow(bucket, size <= SMALL_TRANSFER ? SMALL_WEIGHT : 1);
+	}
+
+	// waits until it is this flow's turn at the server's bucket, then takes count from it
+	private synchronized void schedule(Flow flow, int count) throws InterruptedIOException {
+		double start = Math.max(virtualTime, flow.lastFinish);
+		Waiter waiter = new Waiter(start + count / flow.weight, arrivals++);
+		flow.lastFinish = waiter.finish;
+		waiting.add(waiter);
+
+		try {
+			while (true) {
+				if (waiting.peek() == waiter) {
+					long debt = global.debtNanos();
+					if (debt == 0) {
+						global.take(count);
+						waiting.poll();
+						virtualTime = start;
+						notifyAll();
+						return;
+					}
+					TimeUnit.NANOSECONDS.timedWait(this, debt);
+				} else {
+					wait();
+				}
+			}
+		} catch (InterruptedException e) {
+			waiting.remove(waiter);
+			notifyAll();
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("transfer interrupted");
+		}
+	}
+
+	// one transfer
+	final class Flow {
+		private final TokenBucket user;
+		private final double weight;
+		// guarded by the scheduler
+		private double lastFinish;
+
+		private Flow(TokenBucket user, double weight) {
+			this.user = user;
+			this.weight = weight;
+		}
+
+		// blocks until count more bytes may go through
+		void acquire(int count) throws IOException {
+			if (user != null) {
+				long wait = user.take(count);
+				if (wait > 0) {
+					try {
+						TimeUnit.NANOSECONDS.sleep(wait);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("transfer interrupted");
+					}
+				}
+			}
+			if (global != null) {
+				schedule(this, count);
+			}
+		}
+
+		OutputStream shape(OutputStream out) {
+			return new FilterOutputStream(out) {
+				@Override
+				public void write(int b) throws IOException {
+					acquire(1);
+					out.write(b);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					while (len > 0) {
+						int count = Math.min(len, QUANTUM);
+						acquire(count);
+						out.write(b, off, count);
+						off += count;
+						len -= count;
+					}
+				}
+			};
+		}
+
+		// reads are paid for after the fact, with what actually arrived
+		InputStream shape(InputStream in) {
+			return new FilterInputStream(in) {
+				@Override
+				public int read() throws IOException {
+					int b = in.read();
+					if (b >= 0) {
+						acquire(1);
+					}
+					return b;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					int count = in.read(b, off, Math.min(len, QUANTUM));
+					if (count > 0) {
+						acquire(count);
+					}
+					return count;
+				}
+			};
+		}
+
+		ReadableByteChannel shape(ReadableByteChannel in) {
+			return new ReadableByteChannel() {
+				@Override
+				public int read(ByteBuffer dst) throws IOException {
+					ByteBuffer slice = dst;
+					if (dst.remaining() > QUANTUM) {
+						slice = dst.duplicate();
+						slice.limit(slice.position() + QUANTUM);
+					}
+					int count = in.read(slice);
+					if (slice != dst && count > 0) {
+						dst.position(dst.position() + count);
+					}
+					if (count > 0) {
+						acquire(count);
+					}
+					return count;
+				}
+
+				@Override
+				public boolean isOpen() {
+					return in.isOpen();
+				}
+
+				@Override
+				public void close() throws IOException {
+					in.close();
+				}
+			};
+		}
+
+		WritableByteChannel shape(WritableByteChannel out) {
+			return new ShapedChannel(this, out);
+		}
+	}
+
+	// FileTransfer.sendRange looks for this, to keep sending with transferTo a quantum at a time
+	static final class ShapedChannel implements WritableByteChannel {
+		private final Flow flow;
+		private final WritableByteChannel target;
+
+		ShapedChannel(Flow flow, WritableByteChannel target) {
+			this.flow = flow;
+			this.target = target;
+		}
+
+		void acquire(int count) throws IOException {
+			flow.acquire(count);
+		}
+
+		WritableByteChannel target() {
+			return target;
+		}
+
+		@Override
+		public int write(ByteBuffer src) throws IOException {
+			ByteBuffer slice = src;
+			if (src.remaining() > QUANTUM) {
+				slice = src.duplicate();
+				slice.limit(slice.position() + QUANTUM);
+			}
+			acquire(slice.remaining());
+			int count = target.write(slice);
+			if (slice != src) {
+				src.position(src.position() + count);
+			}
+			return count;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return target.isOpen();
+		}
+
+		@Override
+		public void close() throws IOException {
+			target.close();
+		}
+	}
+}
@@ -0,0 +1,81 @@
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Users looked up recently, so a USER does not go to the database each time.
+ * Only names that exist are kept, so USER with made-up names can't fill it, and
+ * never more than MAX_ENTRIES of them. Entries are dropped after ttlMillis, and
+ * all of them as soon as the database file is written.
+ **/
+class UserCache implements UserLookup {
+	// expired entries are swept out when it gets this full, after that new ones aren't kept
+	private static final int MAX_ENTRIES = 10000;
+
+	private final Database db;
+	private final long ttlNanos;
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	// bumped by invalidateAll, so a lookup that read the old file doesn't cache what it found
+	private final AtomicLong generation = new AtomicLong();
+
+	private static final class Entry {
+		final Users user;
+		final long expires;
+
+		Entry(Users user, long expires) {
+			this.user = user;
+			this.expires = expires;
+		}
+	}
+
+	UserCache(Database db, long ttlMillis) {
+		this.db = db;
+		this.ttlNanos = ttlMillis * 1000000L;
+	}
+
+	// a cache that forgets everything when peopleDB.db changes; if the file can't be
+	// watched, entries only go when they expire
+	static UserCache start(Database db, long ttlMillis) {
+		UserCache cache = new UserCache(db, ttlMillis);
+		if (ttlMillis > 0) {
+			try {
+				DatabaseWatcher.watch().start("user-cache", cache::invalidateAll);
+			} catch (IOException | UnsupportedOperationException e) {
+				Log.warn(Log.NO_SESSION, "user cache only expires by age", e, null);
+			}
+		}
+		return cache;
+	}
+
+	@Override
+	public Users lookup(String username) {
+		Entry entry = entries.get(username);
+		long now = System.nanoTime();
+		if (entry != null && now - entry.expires < 0) {
+			return entry.user;
+		}
+		long readFrom = generation.get();
+		Users user = db.searchForUser(username);
+		if (user == null) {
+			// database unreadable: refuse this once, but don't remember it
+			return new Users();
+		}
+		if (ttlNanos > 0 && user.getValid() != 0 && generation.get() == readFrom && hasRoom(now)) {
+			entries.put(username, new Entry(user, now + ttlNanos));
+		}
+		return user;
+	}
+
+	private boolean hasRoom(long now) {
+		if (entries.size() < MAX_ENTRIES) {
+			return true;
+		}
+		entries.values().removeIf(entry -> now - entry.expires >= 0);
+		return entries.size() < MAX_ENTRIES;
+	}
+
+	void invalidateAll() {
+		generation.incrementAndGet();
+		entries.clear();
+	}
+}
@@ -0,0 +1,56 @@
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Every user and account, loaded into memory at startup. A lookup only reads
+ * the current snapshot, which is never changed once published; when the
+ * database file is written, a DatabaseWatcher loads a fresh one and swaps it in.
+ * If a reload fails the old snapshot stays until the next change.
+ **/
+final class UserDirectory implements UserLookup {
+
+	private final Database db;
+	private final AtomicReference<Map<String, Users>> snapshot = new AtomicReference<Map<String, Users>>();
+
+	private UserDirectory(Database db) {
+		this.db = db;
+	}
+
+	// null if the users can't be loaded or the file can't be watched
+	static UserDirectory start(Database db) {
+		try {
+			DatabaseWatcher watcher = DatabaseWatcher.watch();
+
+			UserDirectory directory = new UserDirectory(db);
+			directory.snapshot.set(db.loadAll());
+
+			watcher.start("user-directory", directory::reload);
+			return directory;
+		} catch (IOException | UnsupportedOperationException | SQLException e) {
+			Log.warn(Log.NO_SESSION, "user snapshot unavailable", e, null);
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	@Override
+	public Users lookup(String username) {
+		Users user = snapshot.get().get(username);
+		return user != null ? user : new Users();
+	}
+
+	private void reload() {
+		try {
+			snapshot.set(db.loadAll());
+			Log.info(Log.NO_SESSION, "users reloaded", null);
+		} catch (SQLException e) {
+			Log.warn(Log.NO_SESSION, "users not reloaded", e, null);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,7 @@
+/**
+ * Where USER finds a user: UserCache asks the database, UserDirectory keeps the
+ * whole table in memory. An unknown name gives a Users whose getValid() is 0.
+ **/
+interface UserLookup {
+	Users lookup(String username);
+}
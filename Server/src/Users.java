@@ -1,10 +1,13 @@
 
+import java.util.Set;
+
 public class Users {
 	
 	private String username;
 	private String password;
-	private String[] accounts;
+	private Set<String> accounts;
 	private int valid;
+	private long rateLimit;
 		
 	public Users()
 	{
@@ -36,7 +39,7 @@ public class Users {
 		this.password = password;
 	}
 	
-	public void setAccounts(String[] accounts)
+	public void setAccounts(Set<String> accounts)
 	{
 		this.accounts = accounts;
 	}
@@ -46,11 +49,27 @@ public class Users {
 		return password;
 	}
 	
-	public String[] getAccounts()
+	public Set<String> getAccounts()
 	{
 		return accounts;
 	}
 	
+	public boolean hasAccount(String account)
+	{
+		return accounts != null && accounts.contains(account);
+	}
+	
+	// bytes per second for this user's transfers, 0 = the server default
+	public long getRateLimit()
+	{
+		return rateLimit;
+	}
+	
+	public void setRateLimit(long rateLimit)
+	{
+		this.rateLimit = rateLimit;
+	}
+	
 	public boolean hasPassword()
 	{
 		if(password != null)
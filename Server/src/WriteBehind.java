@@ -0,0 +1,210 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * STOR in two stages. The session's thread only reads the socket, into a buffer
+ * of the upload's own; each time it is full its bytes move to a buffer from a
+ * shared pool, which a small I/O executor writes to the file, in order, and
+ * hands back. A slow disk and a slow client now overlap instead of taking turns.
+ *
+ * Each upload may have at most depth buffers waiting to be written, and the
+ * pool as a whole is bounded, so a disk that falls behind slows the socket
+ * reads down rather than filling memory. Pool buffers are only ever taken with
+ * data in hand, never held while waiting on a client; when none is left the
+ * session writes its data itself.
+ **/
+final class WriteBehind {
+	private final ExecutorService writers;
+	private final int bufferSize;
+	private final int maxBuffers;
+	private final int depth;
+
+	private final ArrayBlockingQueue<ByteBuffer> free;
+	private final AtomicInteger allocated = new AtomicInteger();
+
+	WriteBehind(int threads, int bufferSize, int maxBuffers, int depth) {
+		this.bufferSize = bufferSize;
+		this.maxBuffers = Math.max(1, maxBuffers);
+		this.depth = Math.max(1, Math.min(depth, this.maxBuffers));
+		this.free = new ArrayBlockingQueue<ByteBuffer>(this.maxBuffers);
+
+		AtomicInteger count = new AtomicInteger();
+		writers = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+			Thread thread = new Thread(runnable, "write-behind-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	// socket -> file like FileTransfer.receiveRange, returning once every byte read is written
+	long receive(ReadableByteChannel socket, FileChannel file, long position, long count, BlockChecksums checksums)
+			throws IOException {
+		Upload upload = new Upload(file, checksums);
+		ByteBuffer fill = ByteBuffer.allocate((int) Math.min(bufferSize, count));
+		long received = 0;
+
+		try {
+			while (received < count) {
+				fill.clear();
+				fill.limit((int) Math.min(fill.capacity(), count - received));
+				boolean ended = false;
+				while (fill.hasRemaining()) {
+					if (socket.read(fill) < 0) {
+						// a blocking source only comes back empty at end of stream
+						ended = true;
+						break;
+					}
+				}
+				fill.flip();
+				int n = fill.remaining();
+				if (n > 0) {
+					upload.reserve();
+					ByteBuffer buffer = pooledBuffer();
+					if (buffer != null) {
+						buffer.put(fill).flip();
+						upload.write(buffer, position + received);
+					} else {
+						// every pool buffer is queued for the disk: write this one here, after ours
+						upload.unreserve();
+						upload.await();
+						upload.writeNow(fill, position + received);
+					}
+				}
+				received += n;
+				if (ended) {
+					break;
+				}
+			}
+		} finally {
+			upload.await();
+		}
+		return received;
+	}
+
+	// null when all maxBuffers are in use, never waits for one
+	private ByteBuffer pooledBuffer() {
+		ByteBuffer buffer = free.poll();
+		if (buffer != null) {
+			buffer.clear();
+			return buffer;
+		}
+		if (allocated.incrementAndGet() <= maxBuffers) {
+			return ByteBuffer.allocateDirect(bufferSize);
+		}
+		allocated.decrementAndGet();
+		return null;
+	}
+
+	private void giveBack(ByteBuffer buffer) {
+		free.offer(buffer);
+	}
+
+	// the buffers of one upload, written one after the other by whichever writer is free
+	private final class Upload implements Runnable {
+		private final FileChannel file;
+		private final BlockChecksums checksums;
+		private final Semaphore slots = new Semaphore(depth);
+		private final ConcurrentLinkedQueue<Chunk> queue = new ConcurrentLinkedQueue<Chunk>();
+		private final AtomicBoolean scheduled = new AtomicBoolean();
+		// first write error, reported to the receiving thread; later chunks are dropped
+		private volatile IOException failure;
+
+		Upload(FileChannel file, BlockChecksums checksums) {
+			this.file = file;
+			this.checksums = checksums;
+		}
+
+		// blocks while depth buffers are already waiting for the disk
+		void reserve() throws IOException {
+			try {
+				slots.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("upload interrupted");
+			}
+			if (failure != null) {
+				slots.release();
+				throw failure;
+			}
+		}
+
+		void unreserve() {
+			slots.release();
+		}
+
+		void write(ByteBuffer buffer, long position) {
+			queue.add(new Chunk(buffer, position));
+			if (scheduled.compareAndSet(false, true)) {
+				writers.execute(this);
+			}
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				Chunk chunk;
+				while ((chunk = queue.poll()) != null) {
+					try {
+						if (failure == null) {
+							writeNow(chunk.buffer, chunk.position);
+						}
+					} catch (IOException e) {
+						failure = e;
+					} finally {
+						giveBack(chunk.buffer);
+						slots.release();
+					}
+				}
+				scheduled.set(false);
+				// a chunk added after the poll above but before the flag was cleared
+				if (queue.isEmpty() || !scheduled.compareAndSet(false, true)) {
+					return;
+				}
+			}
+		}
+
+		void writeNow(ByteBuffer buffer, long position) throws IOException {
+			long at = position;
+			while (buffer.hasRemaining()) {
+				at += file.write(buffer, at);
+			}
+			if (checksums != null) {
+				checksums.advance(at);
+			}
+		}
+
+		// everything handed to write() is on its way to the disk, or the error if a write failed
+		void await() throws IOException {
+			try {
+				slots.acquire(depth);
+				slots.release(depth);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("upload interrupted");
+			}
+			if (failure != null) {
+				throw failure;
+			}
+		}
+	}
+
+	private static final class Chunk {
+		final ByteBuffer buffer;
+		final long position;
+
+		Chunk(ByteBuffer buffer, long position) {
+			this.buffer = buffer;
+			this.position = position;
+		}
+	}
+}